@@ -114,11 +114,26 @@ public class BranchManifestLog implements RestReadView<BranchResource> {
     private List<CommitInfo> getCommits(RevCommit commit) throws IOException, GitAPIException {
         List<CommitInfo> result = new ArrayList();
 
+        // Body is one or more project/sha/subject line triples, a coalesced
+        // snapshot lists every project update it contains
         Date submitDate = commit.getCommitterIdent().getWhen();
-        String project = commit.getFullMessage().split("\n")[2];
+        String[] lines = commit.getFullMessage().split("\n");
+        for (int i = 2; i + 1 < lines.length; i += 3) {
+            if (ObjectId.isId(lines[i + 1])) {
+                result.addAll(getCommits(lines[i], lines[i + 1], submitDate));
+            }
+        }
+
+        return result;
+    }
+
+    private List<CommitInfo> getCommits(String project, String sha1, Date submitDate)
+            throws IOException, GitAPIException {
+        List<CommitInfo> result = new ArrayList();
+
         Repository repo = gitManager.openRepository(new Project.NameKey(project));
         RevWalk rw = new RevWalk(repo);
-        commit = rw.parseCommit(ObjectId.fromString(commit.getFullMessage().split("\n")[3]));
+        RevCommit commit = rw.parseCommit(ObjectId.fromString(sha1));
 
         DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE);
         df.setRepository(repo);
@@ -0,0 +1,146 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Manifest source branches loaded in lazy mode and the last time each was
+ * used, keyed by {@link SubscriptionIndexFile#key}.  A branch that is not
+ * here has nothing in the index.
+ *
+ * An evicted branch stays dormant for the project branches it subscribed
+ * to: an update of one of them has to load it again, otherwise its
+ * snapshots fall behind.
+ */
+class BranchUsage {
+  private final ConcurrentMap<String, Long> lastUsed = Maps.newConcurrentMap();
+
+  /**
+   * project branch, dormant branches subscribing to it, and the other way
+   * round; guarded by this
+   */
+  private final Map<ProjectBranchKey, Set<String>> dormant = Maps.newHashMap();
+  private final Map<String, Set<ProjectBranchKey>> dormantProjects =
+      Maps.newHashMap();
+
+  void markUsed(String key, long now) {
+    lastUsed.put(key, now);
+    wake(key);
+  }
+
+  boolean isLoaded(String key) {
+    return lastUsed.containsKey(key);
+  }
+
+  /**
+   * @return whether the branch is loaded and was last used before the time
+   */
+  boolean isIdle(String key, long idleSince) {
+    Long used = lastUsed.get(key);
+    return used != null && used < idleSince;
+  }
+
+  /**
+   * @return keys of the branches last used before the time
+   */
+  Set<String> getIdle(long idleSince) {
+    Set<String> idle = Sets.newHashSet();
+    for (Map.Entry<String, Long> entry : lastUsed.entrySet()) {
+      if (entry.getValue() < idleSince) {
+        idle.add(entry.getKey());
+      }
+    }
+    return idle;
+  }
+
+  /**
+   * Unload a branch, it stays dormant for the project branches
+   */
+  synchronized void evict(String key, Collection<ProjectBranchKey> projects) {
+    lastUsed.remove(key);
+    wake(key);
+    for (ProjectBranchKey pbKey : projects) {
+      Set<String> keys = dormant.get(pbKey);
+      if (keys == null) {
+        keys = Sets.newHashSet();
+        dormant.put(pbKey, keys);
+      }
+      keys.add(key);
+    }
+    dormantProjects.put(key, Sets.newHashSet(projects));
+  }
+
+  /**
+   * @return keys of the dormant branches subscribing to the project branch
+   */
+  synchronized Set<String> getDormant(ProjectBranchKey pbKey) {
+    Set<String> keys = dormant.get(pbKey);
+    return keys == null ?
+        ImmutableSet.<String>of() : ImmutableSet.copyOf(keys);
+  }
+
+  /**
+   * Forget a branch no longer watched, loaded or dormant
+   */
+  void remove(String key) {
+    lastUsed.remove(key);
+    wake(key);
+  }
+
+  /**
+   * Forget every branch of a manifest source
+   */
+  synchronized void removeStartingWith(String prefix) {
+    Iterator<String> keys = lastUsed.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+    for (String key : Sets.newHashSet(dormantProjects.keySet())) {
+      if (key.startsWith(prefix)) {
+        wake(key);
+      }
+    }
+  }
+
+  /**
+   * The branch is no longer dormant
+   */
+  private synchronized void wake(String key) {
+    Set<ProjectBranchKey> projects = dormantProjects.remove(key);
+    if (projects == null) {
+      return;
+    }
+    for (ProjectBranchKey pbKey : projects) {
+      Set<String> keys = dormant.get(pbKey);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          dormant.remove(pbKey);
+        }
+      }
+    }
+  }
+}
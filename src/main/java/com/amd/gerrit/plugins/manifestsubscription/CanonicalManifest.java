@@ -18,59 +18,112 @@ import com.amd.gerrit.plugins.manifestsubscription.manifest.Include;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.RemoveProject;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import javax.xml.bind.JAXBException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class CanonicalManifest {
-  private Map<String, Manifest> manifests;
+  private final ManifestProvider manifests;
 
-  public CanonicalManifest(VersionedManifests manifests) {
-    this.manifests = manifests.getManifests();
-  }
+  /**
+   * Manifests already resolved by this instance, shared by everything
+   * including them.  Never modified, callers get a copy.
+   */
+  private final Map<String, Manifest> resolved = Maps.newHashMap();
 
-  public CanonicalManifest(Map<String, Manifest> manifests) {
+  /**
+   * Only the manifest asked for and what it includes are read
+   */
+  public CanonicalManifest(VersionedManifests manifests) {
     this.manifests = manifests;
   }
 
-  Manifest getCanonicalManifest(String path) throws ManifestReadException {
-    if (manifests.containsKey(path)) {
-      Manifest manifest = (Manifest) manifests.get(path).clone();
-
-      Manifest includedManifest;
-      Path includedPath;
-      Iterator<Include> i = manifest.getInclude().listIterator();
-      String include;
-      while (i.hasNext()) {
-        include = i.next().getName();
-        includedPath = Paths.get(include);
-        i.remove();
-
-        includedManifest = getCanonicalManifest(includedPath.normalize().toString());
-
-        try {
-          mergeManifestInto(includedManifest, manifest);
-        } catch (Exception e) {
-          throw new ManifestReadException(path);
+  public CanonicalManifest(final Map<String, Manifest> manifests) {
+    this.manifests = new ManifestProvider() {
+      @Override
+      public Manifest readManifest(String path)
+          throws ManifestReadException {
+        if (manifests.containsKey(path)) {
+          return manifests.get(path);
         }
-
+        throw new ManifestReadException(path);
       }
-      // Clear remove project after all include manifest is processed
-      manifest.getRemoveProject().clear();
+    };
+  }
 
-      removeNotDefaultProject(manifest);
+  /**
+   * @return copy of the manifest with its includes merged in.  Lists and
+   * projects are its own, free to modify, remotes and the default are not.
+   */
+  Manifest getCanonicalManifest(String path) throws ManifestReadException {
+    return ManifestCopy.copyProjects(resolve(path, Sets.<String>newHashSet()));
+  }
 
+  /**
+   * @param including manifests currently being resolved, an include of any
+   *                  of them again would never terminate
+   * @return the resolved manifest, shared, not to be modified
+   */
+  private Manifest resolve(String path, Set<String> including)
+      throws ManifestReadException {
+    Manifest manifest = resolved.get(path);
+    if (manifest != null) {
       return manifest;
     }
+    if (!including.add(path)) {
+      throw new ManifestReadException("Include cycle at " + path);
+    }
+
+    try {
+      // only the lists are changed below
+      manifest = ManifestCopy.copy(manifests.readManifest(path));
+    } catch (JAXBException e) {
+      throw new ManifestReadException(path, e);
+    }
+
+    // projects of included manifests this one replaces
+    Set<String> removeProjects = Sets.newHashSet();
+    for (RemoveProject rp : manifest.getRemoveProject()) {
+      removeProjects.add(rp.getName());
+    }
+
+    Manifest includedManifest;
+    Path includedPath;
+    for (Include include : manifest.getInclude()) {
+      includedPath = Paths.get(include.getName());
+
+      includedManifest = resolve(
+          includedPath.normalize().toString(), including);
+
+      try {
+        mergeManifestInto(includedManifest, manifest, removeProjects);
+      } catch (Exception e) {
+        throw new ManifestReadException(path);
+      }
+
+    }
+    manifest.getInclude().clear();
+    // Clear remove project after all include manifest is processed
+    manifest.getRemoveProject().clear();
+
+    removeNotDefaultProject(manifest);
 
-    throw new ManifestReadException(path);
+    including.remove(path);
+    resolved.put(path, manifest);
+    return manifest;
   }
 
-  private Manifest mergeManifestInto(Manifest inner, Manifest outer)
+  /**
+   * inner is left as is, its parts are shared with outer
+   */
+  private Manifest mergeManifestInto(Manifest inner, Manifest outer,
+                                     Set<String> removeProjects)
       throws Exception {
     if (outer.getDefault() != null && inner.getDefault() != null) {
       throw new Exception();
@@ -86,8 +139,6 @@ public class CanonicalManifest {
     }
 
     //TODO add more check
-    resolveRemoveProject(inner, outer);
-
     if (outer.getDefault() == null) {
       outer.setDefault(inner.getDefault());
     }
@@ -105,48 +156,40 @@ public class CanonicalManifest {
     //TODO name remote name duplication check
     outer.getRemote().addAll(inner.getRemote());
 
-    outer.getProject().addAll(inner.getProject());
+    addProjects(inner, outer, removeProjects);
     outer.getExtendProject().addAll(inner.getExtendProject());
 
     return outer;
   }
 
-  private void resolveRemoveProject(Manifest manifest, Set<String> toBeRemoved) {
-    Project p;
-    Iterator<Project> i = manifest.getProject().listIterator();
-    while (i.hasNext()) {
-      p = i.next();
-
-      if (toBeRemoved.contains(p.getName())) {
-        i.remove();
-      }
+  /**
+   * Add the projects of inner to outer, except the ones outer removes
+   */
+  private void addProjects(Manifest inner, Manifest outer,
+                           Set<String> removeProjects) {
+    if (removeProjects.isEmpty()) {
+      outer.getProject().addAll(inner.getProject());
+      return;
     }
-  }
-
-  private void resolveRemoveProject(Manifest manifest, Manifest toRemove) {
-    Set<String> removeProjects = Sets.newHashSet();
-
-    RemoveProject rp;
-    Iterator<RemoveProject> i = toRemove.getRemoveProject().listIterator();
-    while (i.hasNext()) {
-      rp = i.next();
-      removeProjects.add(rp.getName());
-    }
-
-    if (removeProjects.size() > 0) {
-      resolveRemoveProject(manifest, removeProjects);
+    for (Project p : inner.getProject()) {
+      if (!removeProjects.contains(p.getName())) {
+        outer.getProject().add(p);
+      }
     }
   }
 
   private void removeNotDefaultProject(Manifest manifest) {
+    // compacted in one pass, removing one by one shifts the rest every time
+    List<Project> projects = manifest.getProject();
     Project p;
-    Iterator<Project> i = manifest.getProject().listIterator();
-    while (i.hasNext()) {
-      p = i.next();
+    int kept = 0;
+    for (int i = 0; i < projects.size(); i++) {
+      p = projects.get(i);
 
-      if (p.getGroups() != null && p.getGroups().contains("notdefault")) {
-        i.remove();
+      if (p.getGroups() == null || !p.getGroups().contains("notdefault")) {
+        projects.set(kept++, p);
       }
     }
+    projects.subList(kept, projects.size()).clear();
   }
 }
@@ -0,0 +1,74 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out dense int ids for values so they can be referred to from
+ * primitive arrays.  Ids are never reused; the table only grows with the
+ * number of distinct values ever seen, an owner reclaims them by moving to
+ * a new interner.  Lookups in both directions never take a lock.
+ */
+class IdInterner<T> {
+  private final ConcurrentMap<T, Integer> ids = Maps.newConcurrentMap();
+  private volatile Object[] values = new Object[64];
+  private int size;
+
+  /**
+   * @return id of the value, a new one if it wasn't seen before
+   */
+  int intern(T value) {
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(value);
+      if (id != null) {
+        return id;
+      }
+      Object[] v = values;
+      if (size == v.length) {
+        v = Arrays.copyOf(v, size * 2);
+      }
+      v[size] = value;
+      values = v;
+      // published after the value so anyone seeing the id can resolve it
+      ids.put(value, size);
+      return size++;
+    }
+  }
+
+  /**
+   * @return id of the value, -1 if it was never interned
+   */
+  int getId(T value) {
+    Integer id = ids.get(value);
+    return id == null ? -1 : id;
+  }
+
+  @SuppressWarnings("unchecked")
+  T get(int id) {
+    return (T) values[id];
+  }
+
+  int size() {
+    return ids.size();
+  }
+}
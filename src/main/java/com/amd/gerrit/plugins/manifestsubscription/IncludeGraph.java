@@ -0,0 +1,150 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Include;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which manifest of a source branch includes which.
+ *
+ * Kept per manifest source branch and updated one manifest at a time as the
+ * branch changes, so finding the manifests that need regenerating after an
+ * include changed only visits its dependents.  Not thread safe, a graph is
+ * only touched from the event lane of its store.
+ */
+class IncludeGraph {
+  /**
+   * manifest path, paths it includes directly
+   */
+  private final SetMultimap<String, String> includes = HashMultimap.create();
+
+  /**
+   * included path, manifests including it directly
+   */
+  private final SetMultimap<String, String> dependents = HashMultimap.create();
+
+  private final Set<String> manifests = Sets.newHashSet();
+
+  IncludeGraph() {
+  }
+
+  IncludeGraph(Map<String, Manifest> manifests) {
+    for (Map.Entry<String, Manifest> entry : manifests.entrySet()) {
+      update(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Replace the edges of a manifest added or changed in the source
+   */
+  void update(String path, Manifest manifest) {
+    remove(path);
+    manifests.add(path);
+    for (Include i : manifest.getInclude()) {
+      String include = normalize(i.getName());
+      includes.put(path, include);
+      dependents.put(include, path);
+    }
+  }
+
+  /**
+   * Forget a manifest deleted from the source
+   */
+  void remove(String path) {
+    manifests.remove(path);
+    for (String include : includes.removeAll(path)) {
+      dependents.remove(include, path);
+    }
+  }
+
+  Set<String> getManifests() {
+    return ImmutableSet.copyOf(manifests);
+  }
+
+  /**
+   * @param changedPaths files changed in the manifest source
+   * @return manifests that themselves or through (nested) includes read any
+   * of the changed files
+   */
+  Set<String> getAffectedManifests(Collection<String> changedPaths) {
+    Set<String> affected = Sets.newHashSet();
+    Deque<String> pending = new ArrayDeque<>(changedPaths);
+    Set<String> visited = Sets.newHashSet(changedPaths);
+    String path;
+    while (!pending.isEmpty()) {
+      path = pending.pop();
+      if (manifests.contains(path)) {
+        affected.add(path);
+      }
+      for (String dependent : dependents.get(path)) {
+        if (visited.add(dependent)) {
+          pending.push(dependent);
+        }
+      }
+    }
+    return affected;
+  }
+
+  /**
+   * @return an include chain reachable from the manifest that loops back,
+   * starting and ending with the same path, or null if there is none
+   */
+  List<String> findCycle(String path) {
+    return findCycle(path, Lists.<String>newArrayList(),
+        Sets.<String>newHashSet(), Sets.<String>newHashSet());
+  }
+
+  private List<String> findCycle(String path, List<String> chain,
+                                 Set<String> onChain, Set<String> done) {
+    chain.add(path);
+    onChain.add(path);
+    for (String include : includes.get(path)) {
+      if (onChain.contains(include)) {
+        List<String> cycle = Lists.newArrayList(
+            chain.subList(chain.indexOf(include), chain.size()));
+        cycle.add(include);
+        return cycle;
+      }
+      if (!done.contains(include)) {
+        List<String> cycle = findCycle(include, chain, onChain, done);
+        if (cycle != null) {
+          return cycle;
+        }
+      }
+    }
+    chain.remove(chain.size() - 1);
+    onChain.remove(path);
+    done.add(path);
+    return null;
+  }
+
+  static String normalize(String include) {
+    return Paths.get(include).normalize().toString();
+  }
+}
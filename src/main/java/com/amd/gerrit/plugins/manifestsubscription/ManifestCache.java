@@ -0,0 +1,92 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.List;
+
+/**
+ * Parsed manifests by blob id, so a manifest file that didn't change is not
+ * parsed again when its branch is loaded for another push, REST call or
+ * snapshot update.
+ *
+ * Cached manifests are shared by every caller and must never be modified,
+ * whoever needs to change one works on a {@link ManifestCopy}.  Without
+ * injection (unit tests) nothing is cached.
+ */
+class ManifestCache {
+  static final String CACHE_NAME = "manifests";
+
+  /**
+   * weight is the number of projects, about a hundred AOSP manifests
+   */
+  static final long DEFAULT_MAXIMUM_WEIGHT = 100000;
+
+  @Inject
+  @Named(CACHE_NAME)
+  private static Cache<ObjectId, Manifest> cache;
+
+  static CacheModule module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, ObjectId.class, Manifest.class)
+            .maximumWeight(DEFAULT_MAXIMUM_WEIGHT)
+            .weigher(ManifestWeigher.class);
+      }
+    };
+  }
+
+  /**
+   * @return the manifest parsed from the blob, shared, null if not cached
+   */
+  static Manifest get(AnyObjectId blob) {
+    return cache == null ? null : cache.getIfPresent(blob.copy());
+  }
+
+  /**
+   * Remember the manifest parsed from the blob, it is not to be modified
+   * from now on
+   */
+  static void put(AnyObjectId blob, Manifest manifest) {
+    if (cache != null) {
+      cache.put(blob.copy(), manifest);
+    }
+  }
+
+  static class ManifestWeigher implements Weigher<ObjectId, Manifest> {
+    @Override
+    public int weigh(ObjectId blob, Manifest manifest) {
+      return 1 + countProjects(manifest.getProject());
+    }
+
+    private static int countProjects(List<Project> projects) {
+      int count = projects.size();
+      for (Project project : projects) {
+        count += countProjects(project.getProject());
+      }
+      return count;
+    }
+  }
+}
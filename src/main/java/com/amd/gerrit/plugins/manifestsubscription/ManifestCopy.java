@@ -0,0 +1,104 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Default;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+
+import java.util.List;
+
+/**
+ * Shallow copies of the manifest model, in place of the deep clone() when
+ * only some parts are going to change.  Whatever is not copied is shared
+ * with the original and must be left alone by both.
+ */
+class ManifestCopy {
+  private ManifestCopy() {
+  }
+
+  /**
+   * @return manifest with its own lists, their elements shared.  Elements
+   * can be added, removed or replaced.
+   */
+  static Manifest copy(Manifest manifest) {
+    Manifest copy = new Manifest();
+    copy.setNotice(manifest.getNotice());
+    copy.getRemote().addAll(manifest.getRemote());
+    copy.setDefault(manifest.getDefault());
+    copy.setManifestServer(manifest.getManifestServer());
+    copy.getRemoveProject().addAll(manifest.getRemoveProject());
+    copy.getProject().addAll(manifest.getProject());
+    copy.getExtendProject().addAll(manifest.getExtendProject());
+    copy.setRepoHooks(manifest.getRepoHooks());
+    copy.getInclude().addAll(manifest.getInclude());
+    return copy;
+  }
+
+  /**
+   * @return manifest with its own projects, nested ones included, the
+   * attributes of which can be changed.  Remotes, the default and
+   * everything else are shared.
+   */
+  static Manifest copyProjects(Manifest manifest) {
+    Manifest copy = copy(manifest);
+    copy.getProject().clear();
+    copyProjects(manifest.getProject(), copy.getProject());
+    return copy;
+  }
+
+  private static void copyProjects(List<Project> from, List<Project> to) {
+    for (Project project : from) {
+      to.add(copy(project));
+    }
+  }
+
+  private static Project copy(Project project) {
+    Project copy = new Project();
+    copy.setName(project.getName());
+    copy.setPath(project.getPath());
+    copy.setRemote(project.getRemote());
+    copy.setRevision(project.getRevision());
+    copy.setDestBranch(project.getDestBranch());
+    copy.setGroups(project.getGroups());
+    copy.setSyncC(project.getSyncC());
+    copy.setSyncS(project.getSyncS());
+    copy.setUpstream(project.getUpstream());
+    copy.setCloneDepth(project.getCloneDepth());
+    copy.setForcePath(project.getForcePath());
+    copy.getAnnotation().addAll(project.getAnnotation());
+    copyProjects(project.getProject(), copy.getProject());
+    copy.getCopyfile().addAll(project.getCopyfile());
+    copy.getLinkfile().addAll(project.getLinkfile());
+    return copy;
+  }
+
+  /**
+   * @return default with the same attributes, null if there is none
+   */
+  static Default copy(Default d) {
+    if (d == null) {
+      return null;
+    }
+    Default copy = new Default();
+    copy.setRemote(d.getRemote());
+    copy.setRevision(d.getRevision());
+    copy.setDestBranch(d.getDestBranch());
+    copy.setSyncJ(d.getSyncJ());
+    copy.setSyncC(d.getSyncC());
+    copy.setSyncS(d.getSyncS());
+    return copy;
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Annotation;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Copyfile;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Default;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.ExtendProject;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Include;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Linkfile;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.ManifestServer;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Remote;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.RemoveProject;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.RepoHooks;
+import com.google.common.collect.Maps;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the manifest model in a single forward StAX pass, as JAXB would
+ * from manifest.dtd.  Unknown elements and attributes are skipped; remote
+ * references are resolved within the document like JAXB does for IDREFs.
+ * The whole model is kept, every manifest parsed for the subscriptions is
+ * also written back as a snapshot.
+ */
+class ManifestParser {
+  private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+  static {
+    // manifests don't use entities, never fetch anything they point to
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+        false);
+  }
+
+  static Manifest parse(InputStream input) throws XMLStreamException {
+    XMLStreamReader r = factory.createXMLStreamReader(input);
+    try {
+      // past the prolog: doctype, comments and processing instructions
+      while (r.next() != XMLStreamConstants.START_ELEMENT) {
+        if (r.getEventType() == XMLStreamConstants.END_DOCUMENT) {
+          throw new XMLStreamException("Not a manifest: no root element",
+              r.getLocation());
+        }
+      }
+      if (!"manifest".equals(r.getLocalName())) {
+        throw new XMLStreamException("Not a manifest: " + r.getLocalName(),
+            r.getLocation());
+      }
+      return parseManifest(r);
+    } finally {
+      r.close();
+    }
+  }
+
+  private static Manifest parseManifest(XMLStreamReader r)
+      throws XMLStreamException {
+    Manifest manifest = new Manifest();
+    Map<String, Remote> remotes = Maps.newHashMap();
+
+    while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      switch (r.getLocalName()) {
+        case "notice":
+          manifest.setNotice(r.getElementText());
+          continue;
+        case "project":
+          manifest.getProject().add(parseProject(r));
+          continue;
+        case "default":
+          Default d = new Default();
+          d.setRevision(attr(r, "revision"));
+          // resolved to the Remote once the whole document is read
+          d.setRemote(attr(r, "remote"));
+          d.setDestBranch(attr(r, "dest-branch"));
+          d.setSyncJ(attr(r, "sync-j"));
+          d.setSyncC(attr(r, "sync-c"));
+          d.setSyncS(attr(r, "sync-s"));
+          manifest.setDefault(d);
+          break;
+        case "remove-project":
+          RemoveProject rp = new RemoveProject();
+          rp.setName(attr(r, "name"));
+          manifest.getRemoveProject().add(rp);
+          break;
+        case "include":
+          Include include = new Include();
+          include.setName(attr(r, "name"));
+          manifest.getInclude().add(include);
+          break;
+        case "remote":
+          Remote remote = new Remote();
+          remote.setName(attr(r, "name"));
+          remote.setAlias(attr(r, "alias"));
+          remote.setFetch(attr(r, "fetch"));
+          remote.setReview(attr(r, "review"));
+          remote.setRevision(attr(r, "revision"));
+          manifest.getRemote().add(remote);
+          remotes.put(remote.getName(), remote);
+          break;
+        case "manifest-server":
+          ManifestServer server = new ManifestServer();
+          server.setUrl(attr(r, "url"));
+          manifest.setManifestServer(server);
+          break;
+        case "extend-project":
+          ExtendProject ep = new ExtendProject();
+          ep.setName(attr(r, "name"));
+          ep.setPath(attr(r, "path"));
+          ep.setGroups(attr(r, "groups"));
+          manifest.getExtendProject().add(ep);
+          break;
+        case "repo-hooks":
+          RepoHooks hooks = new RepoHooks();
+          hooks.setInProject(attr(r, "in-project"));
+          hooks.setEnabledList(attr(r, "enabled-list"));
+          manifest.setRepoHooks(hooks);
+          break;
+        default:
+          break;
+      }
+      skipElement(r);
+    }
+
+    if (manifest.getDefault() != null) {
+      manifest.getDefault().setRemote(
+          remotes.get(manifest.getDefault().getRemote()));
+    }
+    resolveRemotes(manifest.getProject(), remotes);
+    return manifest;
+  }
+
+  /**
+   * Read a project element up to and including its end tag
+   */
+  private static Project parseProject(XMLStreamReader r)
+      throws XMLStreamException {
+    Project project = new Project();
+    project.setName(attr(r, "name"));
+    project.setRevision(attr(r, "revision"));
+    project.setUpstream(attr(r, "upstream"));
+    project.setGroups(attr(r, "groups"));
+    project.setPath(attr(r, "path"));
+    project.setRemote(attr(r, "remote"));
+    project.setDestBranch(attr(r, "dest-branch"));
+    project.setSyncC(attr(r, "sync-c"));
+    project.setSyncS(attr(r, "sync-s"));
+    project.setCloneDepth(attr(r, "clone-depth"));
+    project.setForcePath(attr(r, "force-path"));
+
+    while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      switch (r.getLocalName()) {
+        case "project":
+          project.getProject().add(parseProject(r));
+          continue;
+        case "annotation":
+          Annotation annotation = new Annotation();
+          annotation.setName(attr(r, "name"));
+          annotation.setValue(attr(r, "value"));
+          annotation.setKeep(attr(r, "keep"));
+          project.getAnnotation().add(annotation);
+          break;
+        case "copyfile":
+          Copyfile copyfile = new Copyfile();
+          copyfile.setSrc(attr(r, "src"));
+          copyfile.setDest(attr(r, "dest"));
+          project.getCopyfile().add(copyfile);
+          break;
+        case "linkfile":
+          Linkfile linkfile = new Linkfile();
+          linkfile.setSrc(attr(r, "src"));
+          linkfile.setDest(attr(r, "dest"));
+          project.getLinkfile().add(linkfile);
+          break;
+        default:
+          break;
+      }
+      skipElement(r);
+    }
+    return project;
+  }
+
+  /**
+   * Replace the remote names set while reading by the remotes, null when
+   * the document doesn't define it
+   */
+  private static void resolveRemotes(List<Project> projects,
+                                     Map<String, Remote> remotes) {
+    for (Project project : projects) {
+      if (project.getRemote() != null) {
+        project.setRemote(remotes.get(project.getRemote()));
+      }
+      resolveRemotes(project.getProject(), remotes);
+    }
+  }
+
+  private static String attr(XMLStreamReader r, String name) {
+    return r.getAttributeValue(null, name);
+  }
+
+  /**
+   * Move from a start tag to its end tag, past anything in between
+   */
+  private static void skipElement(XMLStreamReader r)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = r.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.Maps;
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Files of a manifest source matching manifestPathPattern.
+ *
+ * The pattern is compiled once.  When it can also be read as an automaton,
+ * directories no matching path can be in are not descended into.  Patterns
+ * using regex features the automaton doesn't know (\d, anchors, flags...)
+ * still match correctly, every directory is walked then.
+ */
+class ManifestPathFilter extends TreeFilter {
+  /**
+   * Java regex syntax the automaton would read differently
+   */
+  private static final Pattern UNSUPPORTED =
+      Pattern.compile("\\\\[A-Za-z0-9]|\\(\\?|(?<!\\[)\\^|\\$|\"|&&");
+
+  private static final ConcurrentMap<String, ManifestPathFilter> filters =
+      Maps.newConcurrentMap();
+
+  private final Pattern pattern;
+
+  /**
+   * null to descend every directory
+   */
+  private final RunAutomaton dirs;
+
+  private ManifestPathFilter(String regex) {
+    pattern = Pattern.compile(regex);
+    dirs = toAutomaton(regex);
+  }
+
+  /**
+   * @param regex pattern of a manifest source, null if it has none
+   * @return the pattern manifests are matched with
+   */
+  static String effectivePattern(String regex) {
+    if (regex != null) {
+      return regex;
+    }
+    return ManifestSubscriptionConfig.getManifestPathPattern() != null ?
+        ManifestSubscriptionConfig.getManifestPathPattern() :
+        ManifestSubscriptionConfig.DEFAULT_MANIFEST_PATH_PATTERN;
+  }
+
+  /**
+   * @param regex path pattern, null for the configured one
+   */
+  static ManifestPathFilter get(String regex) {
+    regex = effectivePattern(regex);
+    ManifestPathFilter filter = filters.get(regex);
+    if (filter == null) {
+      filter = new ManifestPathFilter(regex);
+      ManifestPathFilter other = filters.putIfAbsent(regex, filter);
+      if (other != null) {
+        filter = other;
+      }
+    }
+    return filter;
+  }
+
+  private static RunAutomaton toAutomaton(String regex) {
+    if (UNSUPPORTED.matcher(regex).find()) {
+      return null;
+    }
+    try {
+      Automaton automaton = new RegExp(regex, RegExp.NONE).toAutomaton();
+      // a missing transition then means nothing below can match
+      automaton.removeDeadTransitions();
+      return new RunAutomaton(automaton);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  boolean matches(String path) {
+    return pattern.matcher(path).matches();
+  }
+
+  /**
+   * @return false if no path below the directory can match
+   */
+  boolean mayMatchBelow(String dir) {
+    if (dirs == null) {
+      return true;
+    }
+    int state = dirs.getInitialState();
+    for (int i = 0; i < dir.length() && state != -1; i++) {
+      state = dirs.step(state, dir.charAt(i));
+    }
+    return state != -1 && dirs.step(state, '/') != -1;
+  }
+
+  @Override
+  public boolean include(TreeWalk walker) {
+    if (walker.isSubtree()) {
+      return mayMatchBelow(walker.getPathString());
+    }
+    return matches(walker.getPathString());
+  }
+
+  @Override
+  public boolean shouldBeRecursive() {
+    return true;
+  }
+
+  @Override
+  public TreeFilter clone() {
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "MANIFEST_PATH(" + pattern.pattern() + ")";
+  }
+}
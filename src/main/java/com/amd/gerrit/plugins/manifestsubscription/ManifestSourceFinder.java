@@ -0,0 +1,77 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Finds the manifest sources among projects from their plugin config alone.
+ * The project cache reads refs/meta/config of every project it does not hold
+ * yet, so on a cold cache this opens each of them once, unless Gerrit loaded
+ * them with cache.projects.loadOnStartup.
+ */
+class ManifestSourceFinder {
+  private static final Logger log =
+      LoggerFactory.getLogger(ManifestSourceFinder.class);
+
+  interface ConfigLookup {
+    /**
+     * @return plugin config of the project, null if the project is gone
+     */
+    PluginProjectConfig get(Project.NameKey p) throws IOException;
+  }
+
+  private ManifestSourceFinder() {
+  }
+
+  /**
+   * @return project name to plugin config of every project with a store,
+   * projects whose config can't be read are left out
+   */
+  static Map<String, PluginProjectConfig> find(
+      Iterable<Project.NameKey> projects, final ConfigLookup lookup,
+      ExecutorService pool) throws InterruptedException {
+    final Map<String, PluginProjectConfig> sources = Maps.newConcurrentMap();
+    List<Callable<Void>> tasks = Lists.newArrayList();
+    for (final Project.NameKey p : projects) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          try {
+            PluginProjectConfig ppc = lookup.get(p);
+            if (ppc != null && ppc.getStore() != null) {
+              sources.put(p.get(), ppc);
+            }
+          } catch (IOException e) {
+            log.error(e.getMessage(), e);
+          }
+          return null;
+        }
+      });
+    }
+    pool.invokeAll(tasks);
+    return sources;
+  }
+}
@@ -15,37 +15,62 @@
 package com.amd.gerrit.plugins.manifestsubscription;
 
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.annotations.PluginData;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
-import com.google.gerrit.server.git.MetaDataUpdate;
 import com.google.gerrit.server.git.ProjectConfig;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import dk.brics.automaton.RunAutomaton;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.RawParseUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.naming.LimitExceededException;
 import javax.xml.bind.JAXBException;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static com.google.gerrit.reviewdb.client.RefNames.REFS_CONFIG;
 import static com.google.gerrit.reviewdb.client.RefNames.REFS_HEADS;
@@ -57,19 +82,57 @@ public class ManifestSubscription implements
 
   private static final String KEY_BRANCH = "branch";
   private static final String KEY_STORE = "store";
+  private static final String KEY_MANIFEST_PATH_PATTERN =
+      ManifestSubscriptionConfig.CONFIG_MANIFEST_PATH_PATTERN;
 
   static final String STORE_BRANCH_PREFIX = "refs/heads/m/";
+  static final String SNAPSHOT_PATH = "default.xml";
 
   private final String pluginName;
 
-  private final MetaDataUpdate.Server metaDataUpdateFactory;
   private final GitRepositoryManager gitRepoManager;
   private final ProjectCache projectCache;
+  private final PluginConfigFactory cfgFactory;
   private final TagCache tagCache;
   private final GitReferenceUpdated gitRefUpdated;
   private final Provider<IdentifiedUser> identifiedUser;
+  private final Provider<PersonIdent> serverIdent;
+  private final Path dataDir;
 
+  private volatile StoreEventQueue eventQueue;
+  private volatile ScheduledExecutorService coalesceTimer;
+  private volatile ScheduledExecutorService evictionTimer;
+  private volatile ExecutorService startupPool;
+  private volatile Thread startupThread;
 
+  /**
+   * events received while manifest sources are still being loaded,
+   * dispatched in order once the index is built; project and ref of those
+   * that didn't fit
+   */
+  private final StartupEventBuffer<Event> startupEvents =
+      new StartupEventBuffer<>(new StartupEventBuffer.Keys<Event>() {
+        @Override
+        public String of(Event event) {
+          return event.getProjectName() + "\n" + event.getRefName();
+        }
+      });
+
+  /**
+   * snapshot updates waiting for the coalescing window to close
+   * store and branchPath, accumulated project/sha/subject lines
+   * (only touched from the store's event lane)
+   */
+  private final ConcurrentMap<String, StringBuilder> pendingSnapshots =
+      Maps.newConcurrentMap();
+
+  /**
+   * includes between the manifests of each source branch
+   * manifest source project and branch, include graph
+   * (only touched from the store's event lane)
+   */
+  private final ConcurrentMap<String, IncludeGraph> includeGraphs =
+      Maps.newConcurrentMap();
 
   /**
    * source project lookup
@@ -78,236 +141,1167 @@ public class ManifestSubscription implements
   private ConcurrentMap<String, PluginProjectConfig> enabledManifestSource = Maps.newConcurrentMap();
 
   /**
-   * manifest store lookup
-   * repo name, branch (branchPath), Manifest
+   * bumped whenever a manifest source is added or removed
    */
-  private Table<String, String, Manifest> manifestStores = HashBasedTable.create();
+  private final AtomicLong sourcesVersion = new AtomicLong();
 
   /**
-   * manifest source lookup
-   * repo name, branch (branchPath), manifest source repo
+   * tells this instance apart from the one before a restart or reload, the
+   * generation of the subscriptions starts again from zero
    */
-  private Table<String, String, String> manifestSource = HashBasedTable.create();
+  private final String instanceId =
+      Long.toString(System.currentTimeMillis(), 36);
 
   /**
-   * lookup
-   * subscribed project name and branch, manifest dest store, <manifest dest branch Project>
-   **/
-  private Table<ProjectBranchKey, String, ConcurrentMap<String, Set<
-        com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>> subscribedRepos = HashBasedTable.create();
+   * manifest source project name, store its events are queued for.  Set on
+   * the dispatch thread, before the config change it comes from is applied,
+   * and kept when the source is removed so that configuring it again is
+   * still ordered behind the removal.
+   */
+  private final ConcurrentMap<String, String> routes = Maps.newConcurrentMap();
+
+  /**
+   * snapshot manifests and the project branches they subscribe to
+   */
+  private final SubscriptionIndex index = new SubscriptionIndex();
+
+  /**
+   * manifest source project and branch, commit the index was built from
+   */
+  private final ConcurrentMap<String, ObjectId> sourceCommits =
+      Maps.newConcurrentMap();
+
+  /**
+   * index saved before the last restart, only kept during startup
+   */
+  private volatile Map<String, SubscriptionIndexFile.SourceBranch> savedIndex;
+
+  /**
+   * manifest source branches loaded in lazy mode, last time they were used
+   */
+  private final BranchUsage usage = new BranchUsage();
 
   public Set<String> getEnabledManifestSource() {
     return ImmutableSet.copyOf(enabledManifestSource.keySet());
   }
 
-  public Set<ProjectBranchKey> getSubscribedProjects() {
-    return ImmutableSet.copyOf(subscribedRepos.rowKeySet());
+  /**
+   * @return changes whenever {@link #getEnabledManifestSource} does, read it
+   * first
+   */
+  public long getSourcesVersion() {
+    return sourcesVersion.get();
+  }
+
+  public String getInstanceId() {
+    return instanceId;
   }
 
-  public ImmutableTable<ProjectBranchKey, String, Map<String, Set<
-      com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>> getSubscribedRepos() {
-    return new ImmutableTable.Builder<ProjectBranchKey, String, Map<String, Set<
-      com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>>().putAll(subscribedRepos).build();
+  /**
+   * @return immutable view of the subscriptions, replaced after every change
+   */
+  public SubscriptionSnapshot getSubscriptions() {
+    return index.getSnapshot();
+  }
+
+  /**
+   * @return number of ref-updated events waiting to be processed
+   */
+  public int getPendingEvents() {
+    StoreEventQueue queue = eventQueue;
+    return (queue == null ? 0 : queue.getQueueDepth()) +
+        startupEvents.size();
+  }
+
+  /**
+   * @return false while the manifest sources are loaded at startup
+   */
+  public boolean isReady() {
+    return startupEvents.isReady();
   }
 
   @Override
   public void start() {
     ManifestSubscriptionConfig.readConfig();
-    ExecutorService executorService = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors());
+    eventQueue = new StoreEventQueue(pluginName,
+        ManifestSubscriptionConfig.getEventThreads(),
+        ManifestSubscriptionConfig.getEventQueueSize(),
+        new StoreEventQueue.CatchUp() {
+          @Override
+          public Runnable forKey(final String store) {
+            return new Runnable() {
+              @Override
+              public void run() {
+                catchUpStore(store);
+              }
+            };
+          }
+        });
+    // as many as the event queue holds
+    startupEvents.setCapacity(
+        ManifestSubscriptionConfig.getEventThreads() *
+            ManifestSubscriptionConfig.getEventQueueSize());
+    if (ManifestSubscriptionConfig.getSnapshotCoalesceWindow() > 0) {
+      coalesceTimer = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat(pluginName + "-coalesce")
+              .setDaemon(true)
+              .build());
+    }
 
-    for (final Project.NameKey p : projectCache.all()) {
-      try {
-        final ProjectConfig config = ProjectConfig.read(metaDataUpdateFactory.create(p));
-        executorService.execute(
-                new Runnable() {
-                  @Override
-                  public void run() {
-                    try {
-                      loadStoreFromProjectConfig(p.toString(), config);
-                    } catch (IOException | ConfigInvalidException | JAXBException | LimitExceededException e) {
-                      log.error(e.getMessage(), e);
-                    }
-                  }
-                });
-      } catch (IOException | ConfigInvalidException e) {
-        log.error(e.getMessage(), e);
+    final ExecutorService pool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder()
+            .setNameFormat(pluginName + "-startup-%d")
+            .setDaemon(true)
+            .build());
+    startupPool = pool;
+    Thread startup = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Stopwatch sw = Stopwatch.createStarted();
+        try {
+          loadManifestSources(pool);
+        } catch (InterruptedException | RejectedExecutionException e) {
+          // stopped before done
+          return;
+        } finally {
+          pool.shutdown();
+          startupPool = null;
+          startupThread = null;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        int buffered = startupEvents.dispatch(
+            new StartupEventBuffer.Dispatcher<Event>() {
+              @Override
+              public void dispatch(Event event) {
+                ManifestSubscription.this.dispatch(event);
+              }
+            });
+        log.info(String.format(
+            "Ready in %d ms, dispatched %d events received meanwhile",
+            sw.elapsed(TimeUnit.MILLISECONDS), buffered));
+        catchUpDropped(startupEvents.getDropped());
+        startEvictionTimer();
+        saveIndex();
+      }
+    }, pluginName + "-startup");
+    startup.setDaemon(true);
+    startupThread = startup;
+    startup.start();
+  }
+
+  /**
+   * Evict idle branches from now on.  Only started once ready, until then
+   * branches are installed by the startup threads and not through the
+   * store lanes evictions are queued in.
+   */
+  private void startEvictionTimer() {
+    long idleTimeout = ManifestSubscriptionConfig.getIdleBranchTimeout();
+    if (!ManifestSubscriptionConfig.isLazyLoad() || idleTimeout <= 0) {
+      return;
+    }
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setNameFormat(pluginName + "-eviction")
+            .setDaemon(true)
+            .build());
+    timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        evictIdleBranches();
+      }
+    }, idleTimeout, Math.max(idleTimeout / 2, 1), TimeUnit.MILLISECONDS);
+    evictionTimer = timer;
+  }
+
+  /**
+   * Find the manifest sources among all projects, then load them, both in
+   * parallel.  Sources are found through Gerrit's project cache, which loads
+   * the config of every project not in it yet.  The sources saved in
+   * subscriptions.idx are looked up first, they start loading while the
+   * other projects are still searched.
+   */
+  private void loadManifestSources(ExecutorService pool)
+      throws InterruptedException {
+    Stopwatch sw = Stopwatch.createStarted();
+    try {
+      savedIndex = SubscriptionIndexFile.read(
+          dataDir.resolve(SubscriptionIndexFile.FILE_NAME));
+    } catch (IOException e) {
+      log.warn("Ignoring saved subscriptions", e);
+    }
+
+    Set<Project.NameKey> saved = Sets.newLinkedHashSet();
+    if (savedIndex != null) {
+      for (SubscriptionIndexFile.SourceBranch b : savedIndex.values()) {
+        saved.add(new Project.NameKey(b.project));
+      }
+    }
+    List<Project.NameKey> others = Lists.newArrayList();
+    for (Project.NameKey p : projectCache.all()) {
+      if (!saved.contains(p)) {
+        others.add(p);
+      }
+    }
+
+    List<Future<Void>> loads = Lists.newArrayList();
+    int found = 0;
+    try {
+      for (List<Project.NameKey> projects :
+          ImmutableList.of(Lists.newArrayList(saved), others)) {
+        Map<String, PluginProjectConfig> sources = findManifestSources(
+            projects, pool);
+        found += sources.size();
+        loads.addAll(submitLoads(sources, pool));
+      }
+      log.info(String.format(
+          "Found %d manifest sources in %d projects in %d ms",
+          found, saved.size() + others.size(),
+          sw.elapsed(TimeUnit.MILLISECONDS)));
+
+      for (Future<Void> load : loads) {
+        try {
+          load.get();
+        } catch (ExecutionException e) {
+          log.error(e.getMessage(), e);
+        }
+      }
+    } catch (InterruptedException e) {
+      for (Future<Void> load : loads) {
+        load.cancel(true);
+      }
+      throw e;
+    } finally {
+      savedIndex = null;
+    }
+    log.info(String.format("Loaded %d manifest sources in %d ms",
+        found, sw.elapsed(TimeUnit.MILLISECONDS)));
+  }
+
+  /**
+   * @return the manifest sources among the projects, routed to their store
+   */
+  private Map<String, PluginProjectConfig> findManifestSources(
+      List<Project.NameKey> projects, ExecutorService pool)
+      throws InterruptedException {
+    Map<String, PluginProjectConfig> sources = ManifestSourceFinder.find(
+        projects, new ManifestSourceFinder.ConfigLookup() {
+          @Override
+          public PluginProjectConfig get(Project.NameKey p)
+              throws IOException {
+            return getCachedPluginConfig(p);
+          }
+        }, pool);
+    for (Map.Entry<String, PluginProjectConfig> source : sources.entrySet()) {
+      routes.put(source.getKey(), source.getValue().getStore());
+    }
+    return sources;
+  }
+
+  private List<Future<Void>> submitLoads(
+      Map<String, PluginProjectConfig> sources, ExecutorService pool) {
+    List<Future<Void>> loads = Lists.newArrayList();
+    for (final Map.Entry<String, PluginProjectConfig> source :
+        sources.entrySet()) {
+      loads.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          try {
+            loadStore(source.getKey(), source.getValue().getStore(),
+                source.getValue().getBranches(),
+                source.getValue().getManifestPathPattern());
+          } catch (IOException | ConfigInvalidException | JAXBException
+              | LimitExceededException e) {
+            log.error(e.getMessage(), e);
+          }
+          return null;
+        }
+      }));
+    }
+    return loads;
+  }
+
+  /**
+   * Catch up with the events dropped while the startup buffer was full, in
+   * every store they would have updated.  The index is complete by now.
+   *
+   * @param dropped project and ref name of the events
+   */
+  private void catchUpDropped(Set<String> dropped) {
+    if (dropped.isEmpty()) {
+      return;
+    }
+    Set<String> stores = Sets.newLinkedHashSet();
+    for (String key : dropped) {
+      String[] projectRef = key.split("\n", 2);
+      String projectName = projectRef[0];
+      String refName = projectRef[1];
+      if (routes.containsKey(projectName)) {
+        stores.add(routes.get(projectName));
+      } else if (REFS_CONFIG.equals(refName)) {
+        // may have become a manifest source
+        try {
+          PluginProjectConfig cfg =
+              getCachedPluginConfig(new Project.NameKey(projectName));
+          if (cfg != null && cfg.getStore() != null) {
+            routes.put(projectName, cfg.getStore());
+            stores.add(cfg.getStore());
+          }
+        } catch (IOException e) {
+          log.error(e.getMessage(), e);
+        }
+      }
+      if (refName.startsWith(REFS_HEADS)) {
+        stores.addAll(index.getStores(new ProjectBranchKey(projectName,
+            refName.substring(REFS_HEADS.length()))));
+      }
+    }
+
+    log.warn(String.format(
+        "Dropped events of %d refs while starting, catching up %d stores",
+        dropped.size(), stores.size()));
+    for (final String store : stores) {
+      enqueue(store, new Runnable() {
+        @Override
+        public void run() {
+          catchUpStore(store);
+        }
+      });
+    }
+  }
+
+  /**
+   * Save the subscriptions of every source branch, a restart then only
+   * processes the branches that moved
+   */
+  private void saveIndex() {
+    List<SubscriptionIndexFile.SourceBranch> branches = Lists.newArrayList();
+    ObjectId commit;
+    for (Map.Entry<String, PluginProjectConfig> source :
+        enabledManifestSource.entrySet()) {
+      String store = source.getValue().getStore();
+      String pathPattern = ManifestPathFilter.effectivePattern(
+          source.getValue().getManifestPathPattern());
+      for (String branch : source.getValue().getBranches()) {
+        // commit first, it is recorded after the subscriptions built from it
+        commit = sourceCommits.get(
+            SubscriptionIndexFile.key(source.getKey(), branch));
+        if (commit != null) {
+          branches.add(new SubscriptionIndexFile.SourceBranch(
+              source.getKey(), branch, store, commit, pathPattern,
+              index.getWatched(store, branch)));
+        }
+      }
+    }
+
+    try {
+      SubscriptionIndexFile.write(
+          dataDir.resolve(SubscriptionIndexFile.FILE_NAME), branches);
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Subscribe to what was saved before the restart if the source branch
+   * didn't move since, its manifests are still matched with the same
+   * pattern and its snapshots are still in the store
+   *
+   * @param pathPattern manifests of the source, null for the configured
+   *                    pattern
+   * @return false if the branch has to be processed
+   */
+  private boolean restoreBranch(String projectName, String store,
+                                String branch, String pathPattern)
+      throws IOException {
+    Map<String, SubscriptionIndexFile.SourceBranch> saved = savedIndex;
+    String key = SubscriptionIndexFile.key(projectName, branch);
+    SubscriptionIndexFile.SourceBranch sb =
+        saved == null ? null : saved.get(key);
+    if (sb == null || !sb.store.equals(store) ||
+        !sb.manifestPathPattern.equals(
+            ManifestPathFilter.effectivePattern(pathPattern))) {
+      return false;
+    }
+
+    ObjectId head;
+    try (Repository r = gitRepoManager.openRepository(
+        new Project.NameKey(projectName))) {
+      head = r.resolve(REFS_HEADS + branch);
+    }
+    if (!sb.commit.equals(head)) {
+      return false;
+    }
+
+    Map<String, ObjectId> blobs = Maps.newHashMap();
+    try (Repository r = gitRepoManager.openRepository(
+        new Project.NameKey(store));
+         RevWalk walk = new RevWalk(r)) {
+      for (SubscriptionIndex.Watched w : sb.branchPaths) {
+        ObjectId blob = getSnapshotBlob(walk,
+            r.resolve(STORE_BRANCH_PREFIX + w.branchPath));
+        if (blob == null) {
+          return false;
+        }
+        blobs.put(w.branchPath, blob);
+      }
+    }
+
+    for (SubscriptionIndex.Watched w : sb.branchPaths) {
+      index.restore(store, branch, w);
+      index.setSnapshotBlob(store, w.branchPath, blobs.get(w.branchPath));
+    }
+    sourceCommits.put(key, head);
+    markUsed(key);
+    return true;
+  }
+
+  /**
+   * @return whether the subscriptions of the manifest source branch are in
+   * the index, always in eager mode
+   */
+  private boolean isLoaded(String key) {
+    return !ManifestSubscriptionConfig.isLazyLoad() || usage.isLoaded(key);
+  }
+
+  private void markUsed(String key) {
+    if (ManifestSubscriptionConfig.isLazyLoad()) {
+      usage.markUsed(key, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Mark the manifest source branch a store branch is generated from as used
+   */
+  private void markUsed(String store, String storeBranch) {
+    if (!ManifestSubscriptionConfig.isLazyLoad()) {
+      return;
+    }
+    String projectName = index.getManifestSource(store, storeBranch);
+    // branch names may contain '/' too, the index knows which one it is
+    String branch = index.getSourceBranch(store, storeBranch);
+    if (projectName != null && branch != null &&
+        enabledManifestSource.containsKey(projectName)) {
+      markUsed(SubscriptionIndexFile.key(projectName, branch));
+    }
+  }
+
+  /**
+   * Load a manifest source branch if it isn't yet and wait until it is
+   *
+   * @return false if the branch is not watched by the manifest source
+   * @throws RejectedExecutionException if the manifest sources are still
+   * being loaded at startup, or the event queue of the store is full
+   */
+  public boolean loadManifestBranch(final String projectName,
+                                    final String branch)
+      throws InterruptedException {
+    if (!isReady()) {
+      // the startup threads may be installing it right now
+      throw new RejectedExecutionException(
+          "Manifest sources are still being loaded");
+    }
+    PluginProjectConfig ppc = enabledManifestSource.get(projectName);
+    if (ppc == null || !ppc.getBranches().contains(branch)) {
+      return false;
+    }
+
+    FutureTask<Void> task = new FutureTask<>(new Runnable() {
+      @Override
+      public void run() {
+        loadBranch(projectName, branch);
       }
+    }, null);
+    if (!enqueue(storeOf(projectName), task)) {
+      throw new RejectedExecutionException(
+          "Event queue of " + storeOf(projectName) + " is full");
+    }
+    try {
+      task.get();
+    } catch (ExecutionException e) {
+      log.error(e.getMessage(), e);
+    }
+    return true;
+  }
+
+  /**
+   * Queue the eviction of every branch not used within the idle timeout
+   */
+  private void evictIdleBranches() {
+    final long idleSince = System.currentTimeMillis() -
+        ManifestSubscriptionConfig.getIdleBranchTimeout();
+    for (String key : usage.getIdle(idleSince)) {
+      final String[] projectBranch = key.split("\n", 2);
+      enqueue(storeOf(projectBranch[0]), new Runnable() {
+        @Override
+        public void run() {
+          evictBranch(projectBranch[0], projectBranch[1], idleSince);
+        }
+      });
+    }
+  }
+
+  /**
+   * Drop the subscriptions of a branch still idle, its store branches keep
+   * their last snapshot until it is loaded again
+   */
+  private void evictBranch(String projectName, String branch, long idleSince) {
+    String key = SubscriptionIndexFile.key(projectName, branch);
+    PluginProjectConfig ppc = enabledManifestSource.get(projectName);
+    // used again since it was queued, or removed
+    if (!usage.isIdle(key, idleSince) || ppc == null) {
+      return;
     }
 
-    executorService.shutdown();
+    String store = ppc.getStore();
+    for (String branchPath : index.getBranchPaths(store, branch)) {
+      // coalesced updates are written while the snapshot is known
+      flushSnapshot(store, branchPath);
+    }
+    // loaded again by the next update of one of them
+    Set<ProjectBranchKey> projects = Sets.newHashSet();
+    for (SubscriptionIndex.Watched w : index.getWatched(store, branch)) {
+      projects.addAll(Arrays.asList(w.keys));
+    }
+    index.removeBranch(store, branch);
+    includeGraphs.remove(key);
+    sourceCommits.remove(key);
+    usage.evict(key, projects);
+    log.info("Evicted idle manifest source branch " + projectName + " " +
+        branch);
   }
 
   @Override
   public void stop() {
+    ScheduledExecutorService eviction = evictionTimer;
+    evictionTimer = null;
+    if (eviction != null) {
+      eviction.shutdownNow();
+    }
 
+    ScheduledExecutorService timer = coalesceTimer;
+    coalesceTimer = null;
+    if (timer != null) {
+      timer.shutdownNow();
+      // don't lose updates still inside their coalescing window
+      for (String key : pendingSnapshots.keySet()) {
+        final String[] storeBranch = key.split("\n", 2);
+        enqueue(storeBranch[0], new Runnable() {
+          @Override
+          public void run() {
+            flushSnapshot(storeBranch[0], storeBranch[1]);
+          }
+        });
+      }
+    }
+
+    Thread startup = startupThread;
+    if (startup != null) {
+      startup.interrupt();
+    }
+    ExecutorService pool = startupPool;
+    if (pool != null) {
+      // never run, cancelled so that nothing waits for them
+      for (Runnable task : pool.shutdownNow()) {
+        if (task instanceof Future) {
+          ((Future<?>) task).cancel(false);
+        }
+      }
+    }
+    boolean ready = startupEvents.isReady();
+    // not ready, nothing to dispatch them to anymore
+    startupEvents.discard();
+
+    StoreEventQueue queue = eventQueue;
+    eventQueue = null;
+    if (queue != null) {
+      queue.shutdown();
+    }
+
+    if (ready) {
+      saveIndex();
+    }
+    VersionedManifests.clearPools();
   }
 
   @Inject
-  ManifestSubscription(MetaDataUpdate.Server metaDataUpdateFactory,
-                       GitRepositoryManager gitRepoManager,
+  ManifestSubscription(GitRepositoryManager gitRepoManager,
                        @PluginName String pluginName,
                        ProjectCache projectCache,
+                       PluginConfigFactory cfgFactory,
                        TagCache tagCache,
                        GitReferenceUpdated gitRefUpdated,
-                       Provider<IdentifiedUser> identifiedUser) {
-    this.metaDataUpdateFactory = metaDataUpdateFactory;
+                       Provider<IdentifiedUser> identifiedUser,
+                       @GerritPersonIdent Provider<PersonIdent> serverIdent,
+                       @PluginData Path dataDir) {
     this.gitRepoManager = gitRepoManager;
     this.pluginName = pluginName;
     this.projectCache = projectCache;
+    this.cfgFactory = cfgFactory;
     this.tagCache = tagCache;
     this.gitRefUpdated = gitRefUpdated;
     this.identifiedUser = identifiedUser;
+    this.serverIdent = serverIdent;
+    this.dataDir = dataDir;
   }
 
   @Override
   public void onGitReferenceUpdated(Event event) {
-    String projectName = event.getProjectName();
+    // held back while the index is still being built, it would be looked up
+    // half done
+    if (!startupEvents.offer(event)) {
+      dispatch(event);
+    }
+  }
+
+  private void dispatch(final Event event) {
+    final String projectName = event.getProjectName();
     String refName = event.getRefName();
-    String branchName = refName.startsWith("refs/heads/") ?
+    final String branchName = refName.startsWith("refs/heads/") ?
         refName.substring(11) : refName;
-    ProjectBranchKey pbKey = new ProjectBranchKey(projectName, branchName);
+    final ProjectBranchKey pbKey = new ProjectBranchKey(projectName, branchName);
 
+    // Only classify the event here; the actual work is queued behind earlier
+    // events for the same store so Gerrit's dispatch thread is not held up
     if (event.getNewObjectId().equals(ObjectId.zeroId().toString())) {
       // This happens when there's a branch deletion and possibly other events
       log.info("Project: " + projectName + "\nrefName: " + refName);
     } else if (enabledManifestSource.containsKey(projectName) &&
             refName.startsWith(REFS_HEADS) &&
             event.getOldObjectId().equals(ObjectId.zeroId().name())) {
-      processManifestBranchCreated(projectName, branchName);
+      enqueue(storeOf(projectName), new Runnable() {
+        @Override
+        public void run() {
+          processManifestBranchCreated(projectName, branchName);
+        }
+      });
     } else if (REFS_CONFIG.equals(refName)) {
-      // possible change in enabled repos
-      processProjectConfigChange(event);
+      // possible change in enabled repos, applied while neither the old nor
+      // the new store is processing anything else
+      Set<String> stores = routeConfigChange(event);
+      if (!stores.isEmpty()) {
+        enqueue(stores, new Runnable() {
+          @Override
+          public void run() {
+            processProjectConfigChange(event);
+          }
+        });
+      }
     } else if (enabledManifestSource.containsKey(projectName) &&
         enabledManifestSource.get(projectName)
             .getBranches().contains(branchName)) {
-      processManifestChange(event, projectName, branchName);
+      enqueue(storeOf(projectName), new Runnable() {
+        @Override
+        public void run() {
+          processManifestChange(event, projectName, branchName);
+        }
+      });
+    } else {
+      if (index.isSubscribed(pbKey)) {
+        //updates in subscribed repos
+        processRepoChange(event.getNewObjectId(), projectName, pbKey);
+      }
+      loadDormantBranches(pbKey);
+    }
+  }
 
-    } else if (subscribedRepos.containsRow(pbKey)) {
-      //updates in subscribed repos
-      processRepoChange(event.getNewObjectId(), projectName, pbKey);
+  /**
+   * Load the evicted branches subscribing to the project branch, their
+   * snapshots are regenerated from the current heads
+   */
+  private void loadDormantBranches(ProjectBranchKey pbKey) {
+    for (final String key : usage.getDormant(pbKey)) {
+      final String[] projectBranch = key.split("\n", 2);
+      enqueue(storeOf(projectBranch[0]), new Runnable() {
+        @Override
+        public void run() {
+          loadBranch(projectBranch[0], projectBranch[1]);
+        }
+      });
     }
   }
 
-  void processRepoChange(String refUpdatedHash, String projectName,
-                                 ProjectBranchKey pbKey) {
-    // Manifest store and branch
-    Map<String, ConcurrentMap<String, Set<
-            com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>>
-        destinations = subscribedRepos.row(pbKey);
+  /**
+   * Must run in the lane of the store of the manifest source
+   */
+  private void loadBranch(String projectName, String branch) {
+    String key = SubscriptionIndexFile.key(projectName, branch);
+    PluginProjectConfig ppc = enabledManifestSource.get(projectName);
+    if (ppc == null || !ppc.getBranches().contains(branch)) {
+      // no longer watched
+      return;
+    }
+    if (isLoaded(key)) {
+      markUsed(key);
+      return;
+    }
+    try {
+      processManifestBranch(projectName, branch);
+    } catch (JAXBException | IOException | ConfigInvalidException e) {
+      log.error(e.getMessage(), e);
+    }
+  }
 
-    for (String store : destinations.keySet()) {
-      for (String storeBranch : destinations.get(store).keySet()) {
-        Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project> ps
-            = destinations.get(store).get(storeBranch);
+  /**
+   * Queue a snapshot update in every store subscribing to the project branch
+   */
+  void processRepoChange(final String refUpdatedHash, final String projectName,
+                         final ProjectBranchKey pbKey) {
+    for (final String store : index.getStores(pbKey)) {
+      enqueue(store, new Runnable() {
+        @Override
+        public void run() {
+          processRepoChange(refUpdatedHash, projectName, pbKey, store);
+        }
+      });
+    }
+  }
 
-        Manifest manifest = manifestStores.get(store, storeBranch);
-        String manifestSrc = manifestSource.get(store, storeBranch);
-        StringBuilder extraCommitMsg = new StringBuilder();
+  private void processRepoChange(String refUpdatedHash, String projectName,
+                                 ProjectBranchKey pbKey, String store) {
+    try (RepoSession session = new RepoSession(gitRepoManager)) {
+      // the same for every store branch
+      String extraCommitMsg =
+          describeCommit(session, projectName, refUpdatedHash);
 
-        Project.NameKey p = new Project.NameKey(projectName);
-        try (Repository r = gitRepoManager.openRepository(p);
-             RevWalk walk = new RevWalk(r)) {
+      // Manifest store branches, written together
+      Map<String, String> snapshots = Maps.newLinkedHashMap();
+      for (String storeBranch : index.getDestinations(pbKey, store)) {
+        markUsed(store, storeBranch);
 
-          RevCommit c = walk.parseCommit(
-              ObjectId.fromString(refUpdatedHash));
+        // applied to the snapshot manifest when it is next written
+        index.setRevision(store, storeBranch, pbKey, refUpdatedHash);
 
-          extraCommitMsg.append(projectName);
-          extraCommitMsg.append("\n");
-          extraCommitMsg.append(refUpdatedHash);
-          extraCommitMsg.append("\n");
-          extraCommitMsg.append(c.getShortMessage());
-        } catch (IOException e) {
-          log.error(e.getMessage(), e);
+        if (coalesceTimer != null) {
+          coalesceSnapshot(store, storeBranch, extraCommitMsg);
+          continue;
         }
 
-        // these are project from the above manifest previously
-        // cached in the lookup table
-        for (com.amd.gerrit.plugins.manifestsubscription.manifest.Project
-            updateProject : ps) {
-          updateProject.setRevision(refUpdatedHash);
+        snapshots.put(storeBranch, extraCommitMsg);
+      }
+      if (!snapshots.isEmpty()) {
+        writeSnapshots(session, store, snapshots);
+      }
+    }
+  }
+
+  /**
+   * @return project, commit and subject lines for the body of the snapshot
+   * commits the commit triggers, empty if the commit can't be read
+   */
+  private static String describeCommit(RepoSession session,
+                                       String projectName, String commitId) {
+    StringBuilder extraCommitMsg = new StringBuilder();
+    try {
+      RevCommit c = session.walk(new Project.NameKey(projectName))
+          .parseCommit(ObjectId.fromString(commitId));
+
+      extraCommitMsg.append(projectName);
+      extraCommitMsg.append("\n");
+      extraCommitMsg.append(commitId);
+      extraCommitMsg.append("\n");
+      extraCommitMsg.append(c.getShortMessage());
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    }
+    return extraCommitMsg.toString();
+  }
+
+  /**
+   * Hold back the snapshot commit of a store branch until the coalescing
+   * window closes.  Revisions are already applied to the cached manifest so
+   * only the triggering project/sha/subject lines need to be kept, they end
+   * up one after another in the body of the single snapshot commit.
+   */
+  private void coalesceSnapshot(final String store, final String storeBranch,
+                                String extraCommitMsg) {
+    String key = store + "\n" + storeBranch;
+    StringBuilder pending = pendingSnapshots.get(key);
+    if (pending != null) {
+      VersionedManifests.appendExtraCommitMsg(pending, extraCommitMsg);
+      return;
+    }
+
+    pending = new StringBuilder();
+    VersionedManifests.appendExtraCommitMsg(pending, extraCommitMsg);
+    pendingSnapshots.put(key, pending);
+    ScheduledExecutorService timer = coalesceTimer;
+    if (timer == null) {
+      flushSnapshot(store, storeBranch);
+      return;
+    }
+    try {
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          enqueue(store, new Runnable() {
+            @Override
+            public void run() {
+              flushSnapshot(store, storeBranch);
+            }
+          });
+        }
+      }, ManifestSubscriptionConfig.getSnapshotCoalesceWindow(),
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // stopping, commit right away
+      flushSnapshot(store, storeBranch);
+    }
+  }
+
+  private void flushSnapshot(String store, String storeBranch) {
+    StringBuilder extraCommitMsg =
+        pendingSnapshots.remove(store + "\n" + storeBranch);
+    if (extraCommitMsg != null) {
+      try (RepoSession session = new RepoSession(gitRepoManager)) {
+        writeSnapshots(session, store, Collections.singletonMap(
+            storeBranch, extraCommitMsg.toString()));
+      }
+    }
+  }
+
+  /**
+   * Read back the last snapshot manifest of each store branch, apply the
+   * revisions changed since and commit them all in one batch
+   *
+   * @param extraCommitMsgs store branch, lines for its commit message
+   */
+  private void writeSnapshots(RepoSession session, String store,
+                              Map<String, String> extraCommitMsgs) {
+    Project.NameKey p = new Project.NameKey(store);
+    try (SnapshotBatch batch = new SnapshotBatch(session.open(p),
+        session.walk(p), serverIdent.get())) {
+      for (Map.Entry<String, String> e : extraCommitMsgs.entrySet()) {
+        String storeBranch = e.getKey();
+        ObjectId blob = index.getSnapshotBlob(store, storeBranch);
+        if (blob == null) {
+          // no longer watched, or never written
+          continue;
         }
 
         try {
-          Utilities.updateManifest(gitRepoManager, metaDataUpdateFactory,
-                  tagCache, gitRefUpdated, identifiedUser, store,
-                  STORE_BRANCH_PREFIX + storeBranch, manifest,
-                  manifestSrc, extraCommitMsg.toString(), null);
-        } catch (JAXBException | IOException | GitAPIException e) {
-          log.error(e.getMessage(), e);
+          // the parsed manifest is shared through the cache
+          Manifest manifest = ManifestCopy.copyProjects(
+              VersionedManifests.parseManifest(
+                  session.walk(p).getObjectReader(), blob));
+          index.applyRevisions(store, storeBranch, manifest);
+
+          String manifestSrc = index.getManifestSource(store, storeBranch);
+          if (!batch.add(STORE_BRANCH_PREFIX + storeBranch, manifest,
+              manifestSrc, e.getValue())) {
+            // branch is gone, created again on its own
+            ObjectId commit = updateManifest(session, store,
+                STORE_BRANCH_PREFIX + storeBranch, manifest, manifestSrc,
+                e.getValue());
+            recordSnapshot(session, store, storeBranch, commit);
+          }
+        } catch (JAXBException | IOException | GitAPIException ex) {
+          log.error(ex.getMessage(), ex);
         }
+      }
+
+      Map<String, ObjectId> blobs = batch.execute(p, tagCache, gitRefUpdated,
+          Utilities.currentAccount(identifiedUser));
+      for (Map.Entry<String, ObjectId> e : blobs.entrySet()) {
+        index.setSnapshotBlob(store,
+            e.getKey().substring(STORE_BRANCH_PREFIX.length()), e.getValue());
+      }
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Remember the blob written by a snapshot commit, the next update starts
+   * from it
+   */
+  private void recordSnapshot(RepoSession session, String store,
+                              String storeBranch, ObjectId commit)
+      throws IOException {
+    if (commit == null) {
+      return;
+    }
+    ObjectId blob = getSnapshotBlob(
+        session.walk(new Project.NameKey(store)), commit);
+    if (blob != null) {
+      index.setSnapshotBlob(store, storeBranch, blob);
+    }
+  }
+
+  /**
+   * @return blob of the snapshot manifest in the store commit, null if
+   * there is none
+   */
+  private static ObjectId getSnapshotBlob(RevWalk walk, ObjectId commit)
+      throws IOException {
+    if (commit == null) {
+      return null;
+    }
+    try (TreeWalk treeWalk = TreeWalk.forPath(walk.getObjectReader(),
+        SNAPSHOT_PATH,
+        walk.parseCommit(commit).getTree())) {
+      return treeWalk == null ? null : treeWalk.getObjectId(0);
+    }
+  }
+
+  /**
+   * Events are ordered per store; a project that never was a manifest
+   * source is ordered by its own name
+   */
+  private String storeOf(String projectName) {
+    String store = routes.get(projectName);
+    return store != null ? store : projectName;
+  }
 
+  /**
+   * Queue the events of the project behind the change of its config from
+   * now on, in the lane of its new store
+   *
+   * @return stores the config change has to hold, the one the project was
+   * queued for and the new one; none if it is not and was not a manifest
+   * source
+   */
+  private Set<String> routeConfigChange(Event event) {
+    String projectName = event.getProjectName();
+    Set<String> stores = Sets.newLinkedHashSet();
+    String route = routes.get(projectName);
+    if (route != null) {
+      stores.add(route);
+    }
+    try {
+      PluginProjectConfig newCfg = parsePluginConfig(
+          new Project.NameKey(projectName), event.getNewObjectId());
+      if (newCfg != null && newCfg.getStore() != null) {
+        stores.add(newCfg.getStore());
+        routes.put(projectName, newCfg.getStore());
       }
+    } catch (IOException | ConfigInvalidException e) {
+      log.error(e.getMessage(), e);
+    }
+    return stores;
+  }
+
+  /**
+   * @return false if the lane of the store is full, the task is dropped and
+   * the store caught up later instead
+   */
+  private boolean enqueue(String store, Runnable task) {
+    StoreEventQueue queue = eventQueue;
+    if (queue != null) {
+      return queue.execute(store, task);
     }
+    // not started (or already stopped), nothing to hand the work to
+    task.run();
+    return true;
   }
 
-  private void updateProjectRev(String projectName, String branch, String rev,
-                                List<com.amd.gerrit.plugins.
-                                    manifestsubscription.manifest.Project> projects) {
-    //TODO optimize to not have to iterate through manifest?
-    for (com.amd.gerrit.plugins.manifestsubscription.manifest.Project project : projects) {
-      if (Objects.equals(projectName, project.getName()) &&
-          Objects.equals(branch, project.getUpstream())) {
-        project.setRevision(rev);
+  private boolean enqueue(Collection<String> stores, Runnable task) {
+    StoreEventQueue queue = eventQueue;
+    if (queue != null) {
+      return queue.execute(stores, task);
+    }
+    task.run();
+    return true;
+  }
+
+  /**
+   * Catch up with the events of a store dropped while its lane was full:
+   * apply the current config of the manifest sources queued for it and
+   * regenerate their loaded branches from the current heads.  The snapshot
+   * commits don't list the dropped updates.
+   */
+  private void catchUpStore(String store) {
+    log.warn("Reloading manifest store " + store + " after dropped events");
+    Set<String> projects = Sets.newHashSet();
+    for (Map.Entry<String, String> route : routes.entrySet()) {
+      if (route.getValue().equals(store)) {
+        projects.add(route.getKey());
+      }
+    }
+    for (Map.Entry<String, PluginProjectConfig> source :
+        enabledManifestSource.entrySet()) {
+      if (source.getValue().getStore().equals(store)) {
+        projects.add(source.getKey());
       }
+    }
 
-      if (project.getProject().size() > 0) {
-        updateProjectRev(projectName, branch, rev, project.getProject());
+    for (final String projectName : projects) {
+      PluginProjectConfig loaded = enabledManifestSource.get(projectName);
+      if (loaded != null && !loaded.getStore().equals(store)) {
+        // moving to another store, both have to be held
+        enqueue(ImmutableSet.of(store, loaded.getStore()), new Runnable() {
+          @Override
+          public void run() {
+            reloadSource(projectName);
+          }
+        });
+        continue;
       }
+      reloadSource(projectName);
     }
+  }
+
+  /**
+   * Bring a manifest source up to date with its cached config, then
+   * regenerate the snapshots of its loaded branches
+   */
+  private void reloadSource(String projectName) {
+    Project.NameKey p = new Project.NameKey(projectName);
+    try {
+      PluginProjectConfig cfg = getCachedPluginConfig(p);
+      PluginProjectConfig loaded = enabledManifestSource.get(projectName);
+      if (cfg != null && cfg.getStore() != null) {
+        routes.put(projectName, cfg.getStore());
+      }
+
+      Set<String> kept = loaded == null ?
+          Collections.<String>emptySet() : loaded.getBranches();
+      switch (PluginConfigChange.of(loaded, cfg, loaded)) {
+        case BRANCHES:
+          updateBranches(projectName, loaded, cfg.getBranches());
+          break;
+        case RELOAD:
+          if (loaded != null) {
+            removeManifestSource(projectName, loaded.getStore());
+          }
+          if (cfg != null && cfg.getStore() != null) {
+            loadStore(projectName, cfg.getStore(), cfg.getBranches(),
+                cfg.getManifestPathPattern());
+          }
+          return;
+        case NONE:
+          break;
+      }
 
+      PluginProjectConfig ppc = enabledManifestSource.get(projectName);
+      if (ppc == null) {
+        return;
+      }
+      for (String branch : Sets.intersection(kept, ppc.getBranches())) {
+        if (isLoaded(SubscriptionIndexFile.key(projectName, branch))) {
+          processManifestBranch(projectName, branch);
+        }
+      }
+    } catch (IOException | ConfigInvalidException
+        | JAXBException | LimitExceededException e) {
+      log.error(e.getMessage(), e);
+    }
   }
 
   private void processManifestChange(Event event,
                                      String projectName, String branchName) {
-    try {
-      VersionedManifests versionedManifests = parseManifests(event);
-      processManifestChange(versionedManifests, projectName, branchName, event);
+    try (RepoSession session = new RepoSession(gitRepoManager)) {
+      VersionedManifests versionedManifests = parseManifests(session,
+          new Project.NameKey(event.getProjectName()), event.getRefName());
+      // not loaded yet in lazy mode, everything is new to the index
+      Set<String> changedPaths =
+          isLoaded(SubscriptionIndexFile.key(projectName, branchName)) ?
+              getChangedPaths(session, new Project.NameKey(projectName),
+                  event.getOldObjectId(), event.getNewObjectId()) : null;
+      processManifestChange(session, versionedManifests, projectName,
+          branchName, event, changedPaths);
     } catch (JAXBException | IOException | ConfigInvalidException e) {
       log.error(e.getMessage(), e);
     }
 
   }
 
-  private void processManifestChange(VersionedManifests versionedManifests,
+  /**
+   * Regenerate every manifest of the source branch from its head
+   */
+  private void processManifestBranch(String projectName, String branch)
+      throws JAXBException, IOException, ConfigInvalidException {
+    try (RepoSession session = new RepoSession(gitRepoManager)) {
+      processManifestChange(session, parseManifests(session,
+          new Project.NameKey(projectName), branch), projectName, branch,
+          null, null);
+    }
+  }
+
+  /**
+   * @param session the session versionedManifests was loaded with, the
+   *                manifests are read and the snapshots written through it
+   * @param changedPaths files changed by the update of the manifest source
+   *                     branch, null to regenerate every manifest
+   */
+  private void processManifestChange(RepoSession session,
+                                     VersionedManifests versionedManifests,
                                      String projectName, String branchName,
-                                     Event event) {
+                                     Event event, Set<String> changedPaths) {
     //possible manifest update in subscribing repos
-    //TODO Fix, right now update all manifest every time
-    //TODO even when only one of the manifest has changed
 
     try {
       if (versionedManifests != null) {
         CanonicalManifest cManifest = new CanonicalManifest(versionedManifests);
-        Set<String> manifests = versionedManifests.getManifestPaths();
+        Set<String> manifests;
         Manifest manifest;
-        String store = enabledManifestSource.get(projectName).getStore();
+        PluginProjectConfig ppc = enabledManifestSource.get(projectName);
+        if (ppc == null) {
+          // removed while the change was queued
+          return;
+        }
+        String store = ppc.getStore();
         Table<String, String, String> lookup = HashBasedTable.create();
 
-        // Remove old manifest from subscription if destination store and branch
-        // matches manifest source being updated
-        // TODO again, this assume 1-1 map between store and manifest store
-        synchronized (this) {
-          Map<String,
-                  Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>> branchPaths;
-          for (Table.Cell<ProjectBranchKey, String,
-                  ConcurrentMap<String,
-                          Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>> cell :
-                  subscribedRepos.cellSet()) {
-            if (store.equals(cell.getColumnKey())) {
-              branchPaths = cell.getValue();
-
-              Iterator<String> iter = branchPaths.keySet().iterator();
-              String branchPath;
-              while (iter.hasNext()) {
-                branchPath = iter.next();
-                if (branchPath.startsWith(branchName + "/")) {
-                  iter.remove();
-                  manifestStores.remove(store, branchPath);
-                  manifestSource.remove(store, branchPath);
-                }
+        String graphKey = SubscriptionIndexFile.key(projectName, branchName);
+        IncludeGraph graph = includeGraphs.get(graphKey);
+        if (changedPaths == null || graph == null) {
+          graph = new IncludeGraph(versionedManifests.getManifests());
+          includeGraphs.put(graphKey, graph);
+        } else {
+          // only the changed manifests are parsed
+          for (String path : changedPaths) {
+            if (versionedManifests.getManifestPaths().contains(path)) {
+              try {
+                graph.update(path, versionedManifests.readManifest(path));
+                continue;
+              } catch (ManifestReadException e) {
+                log.error(e.getMessage(), e);
               }
             }
+            graph.remove(path);
+          }
+        }
+
+        // coalesced updates of the regenerated store branches, listed in
+        // the regenerated commit
+        Map<String, StringBuilder> pending = Maps.newHashMap();
+        // TODO again, this assume 1-1 map between store and manifest store
+        if (changedPaths == null) {
+          // Remove old manifest from subscription if destination store and
+          // branch matches manifest source being updated
+          manifests = versionedManifests.getManifestPaths();
+          for (String branchPath : index.removeBranch(store, branchName)) {
+            // regenerated below from current heads
+            takePendingSnapshot(store, branchPath, pending);
+          }
+        } else {
+          // Only regenerate manifests that read a changed file, directly or
+          // through includes, plus the ones not watched yet
+          manifests = graph.getAffectedManifests(changedPaths);
+          // branch names can contain '/', only the branchPaths generated
+          // from this branch are looked at
+          String prefix = branchName + "/";
+          Set<String> branchPaths = index.getBranchPaths(store, branchName);
+          for (String path : versionedManifests.getManifestPaths()) {
+            if (!branchPaths.contains(prefix + path) ||
+                index.getSnapshotBlob(store, prefix + path) == null) {
+              manifests.add(path);
+            }
+          }
+          for (String branchPath : branchPaths) {
+            if (!versionedManifests.getManifestPaths().contains(
+                branchPath.substring(prefix.length()))) {
+              // manifest deleted from the source
+              index.removeBranchPath(store, branchPath);
+              pendingSnapshots.remove(store + "\n" + branchPath);
+            }
+          }
+          for (String path : manifests) {
+            takePendingSnapshot(store, prefix + path, pending);
           }
         }
 
@@ -315,38 +1309,37 @@ public class ManifestSubscription implements
         //TODO this may be impossible
         //TODO only monitor projects without 'remote' attribute / only using default?
 
-        StringBuilder extraCommitMsg = new StringBuilder();
-        if (event != null) {
-          Project.NameKey p = new Project.NameKey(projectName);
-          try (Repository r = gitRepoManager.openRepository(p);
-               RevWalk walk = new RevWalk(r)) {
-
-            RevCommit c = walk.parseCommit(
-                    ObjectId.fromString(event.getNewObjectId()));
-
-            extraCommitMsg.append(projectName);
-            extraCommitMsg.append("\n");
-            extraCommitMsg.append(event.getNewObjectId());
-            extraCommitMsg.append("\n");
-            extraCommitMsg.append(c.getShortMessage());
-          } catch (IOException e) {
-            log.error(e.getMessage(), e);
-          }
-        }
+        String extraCommitMsg = event == null ? null :
+            describeCommit(session, projectName, event.getNewObjectId());
 
+        List<String> cycle;
         for (String path : manifests) {
           String bp = branchName + "/" + path;
+          cycle = graph.findCycle(path);
+          if (cycle != null) {
+            log.error("Include cycle in " + projectName + " " + branchName +
+                ": " + Joiner.on(" -> ").join(cycle));
+            continue;
+          }
+          StringBuilder commitMsg = new StringBuilder();
+          VersionedManifests.appendExtraCommitMsg(commitMsg, extraCommitMsg);
+          if (pending.containsKey(bp)) {
+            VersionedManifests.appendExtraCommitMsg(commitMsg,
+                pending.get(bp).toString());
+          }
           try {
             manifest = cManifest.getCanonicalManifest(path);
 
-            watchCanonicalManifest(manifest, store, bp, projectName);
+            index.watch(store, branchName, bp, manifest, projectName);
 
-            VersionedManifests.affixManifest(gitRepoManager, manifest, lookup);
+            VersionedManifests.affixManifest(session, manifest, lookup);
             //save manifest
             //TODO added the m/ to the ref to to work around LOCK_FAILURE error of creating master/bla/bla
             //TODO (because default master ref already exists) better solution?
-            updateManifest(store, STORE_BRANCH_PREFIX + bp, manifest,
-                    projectName, event == null ? null : extraCommitMsg.toString());
+            ObjectId commit = updateManifest(session, store,
+                STORE_BRANCH_PREFIX + bp, manifest, projectName,
+                Strings.emptyToNull(commitMsg.toString()));
+            recordSnapshot(session, store, bp, commit);
 
           } catch (ManifestReadException | GitAPIException e) {
             log.error(e.getMessage(), e);
@@ -354,6 +1347,10 @@ public class ManifestSubscription implements
 
         }
 
+        if (versionedManifests.getRevision() != null) {
+          sourceCommits.put(graphKey, versionedManifests.getRevision().copy());
+        }
+        markUsed(graphKey);
       }
     } catch (JAXBException | IOException e) {
       log.error(e.getMessage(), e);
@@ -361,107 +1358,73 @@ public class ManifestSubscription implements
 
   }
 
-  private void watchCanonicalManifest(Manifest manifest, String store,
-                                      String branchPath, String manifestSrc) {
-    String defaultBranch;
-    if (manifest.getDefault() != null &&
-        manifest.getDefault().getRevision() != null) {
-      defaultBranch = manifest.getDefault().getRevision();
-    } else {
-      defaultBranch = "";
-    }
-
-    synchronized (this) {
-      manifestStores.put(store, branchPath, manifest);
-      manifestSource.put(store, branchPath, manifestSrc);
+  /**
+   * Take the coalesced updates of a store branch out of their window, they
+   * are written with the store branch instead
+   */
+  private void takePendingSnapshot(String store, String branchPath,
+                                   Map<String, StringBuilder> pending) {
+    StringBuilder lines = pendingSnapshots.remove(store + "\n" + branchPath);
+    if (lines != null) {
+      pending.put(branchPath, lines);
     }
-
-    List<com.amd.gerrit.plugins.manifestsubscription.manifest.Project> projects
-        = manifest.getProject();
-    watchProjectsInCanonicalManifest(store, branchPath, defaultBranch, projects);
   }
 
-  private void watchProjectsInCanonicalManifest(String store, String branchPath,
-                                                String defaultBranch,
-                                                List<com.amd.gerrit.plugins.manifestsubscription.manifest.Project> projects) {
-    ProjectBranchKey pbKey;
-    for (com.amd.gerrit.plugins.manifestsubscription.manifest.Project project : projects) {
-      if (manifestStores.containsRow(project.getName()) &&
-          !manifestStores.row(project.getName()).isEmpty()) {
-        // Skip if it's one of the repo for storing
-        // manifest to avoid infinite loop
-        // This is a bit too general, but it's done to avoid the complexity
-        // of actually tracing out the loop
-        // i.e. manifest1->store2 --> manifest2->store1
-        continue;
-      }
-
-      String branch = project.getRevision() == null ?
-          defaultBranch : project.getRevision();
-      pbKey = new ProjectBranchKey(project.getName(),
-          Repository.shortenRefName(branch));
-
-
-      //TODO only update manifests that changed
-      if (!subscribedRepos.contains(pbKey, store)) {
-        synchronized (this) {
-          subscribedRepos.put(pbKey, store,
-                  Maps.<String, Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>newConcurrentMap());
-        }
-      }
-
-      Map<String,
-          Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>> ps;
-      ps = subscribedRepos.get(pbKey, store);
-      if (!ps.containsKey(branchPath)) {
-        ps.put(branchPath,
-            Sets.<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>newHashSet());
-      }
-      ps.get(branchPath).add(project);
+  /**
+   * @return paths changed between the two commits of the manifest source,
+   * null if they cannot be compared and every manifest has to be regenerated
+   */
+  private Set<String> getChangedPaths(RepoSession session, Project.NameKey p,
+                                      String oldId, String newId) {
+    ObjectId oldObjectId = ObjectId.fromString(oldId);
+    if (ObjectId.zeroId().equals(oldObjectId)) {
+      return null;
+    }
 
-      if (project.getProject().size() > 0) {
-        watchProjectsInCanonicalManifest(store, branchPath, defaultBranch,
-            project.getProject());
+    try (TreeWalk treeWalk =
+             new TreeWalk(session.walk(p).getObjectReader())) {
+      RevWalk walk = session.walk(p);
+      treeWalk.addTree(walk.parseCommit(oldObjectId).getTree());
+      treeWalk.addTree(walk.parseCommit(ObjectId.fromString(newId)).getTree());
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(TreeFilter.ANY_DIFF);
+
+      Set<String> changedPaths = Sets.newHashSet();
+      while (treeWalk.next()) {
+        changedPaths.add(treeWalk.getPathString());
       }
+      return changedPaths;
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      return null;
     }
   }
 
   private void processProjectConfigChange(Event event) {
-    Project.NameKey p = new Project.NameKey(event.getProjectName());
+    String projectName = event.getProjectName();
+    Project.NameKey p = new Project.NameKey(projectName);
 
     //TODO test two separate project configured to the same store
     try {
-      ProjectConfig oldCfg = parseConfig(p, event.getOldObjectId());
-      ProjectConfig newCfg = parseConfig(p, event.getNewObjectId());
-
-      //TODO selectively update changes instead of complete reset
-      if (oldCfg != null) {
-        String oldStore =
-            oldCfg.getPluginConfig(pluginName).getString(KEY_STORE);
-
-        if (oldStore != null && !oldStore.isEmpty()) {
+      PluginProjectConfig oldCfg = parsePluginConfig(p, event.getOldObjectId());
+      PluginProjectConfig newCfg = parsePluginConfig(p, event.getNewObjectId());
+      PluginProjectConfig loaded = enabledManifestSource.get(projectName);
+
+      switch (PluginConfigChange.of(oldCfg, newCfg, loaded)) {
+        case NONE:
+          return;
+        case BRANCHES:
+          updateBranches(projectName, loaded, newCfg.getBranches());
+          return;
+        case RELOAD:
           //TODO FIX assume unique store for each manifest source (1-1 map)
-          synchronized (this) {
-            manifestStores.row(oldStore).clear();
-            manifestSource.row(oldStore).clear();
+          if (loaded != null) {
+            removeManifestSource(projectName, loaded.getStore());
           }
-          enabledManifestSource.remove(event.getProjectName());
-
-          Iterator<Table.Cell<ProjectBranchKey, String, ConcurrentMap<String,
-              Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>>> iter =
-              subscribedRepos.cellSet().iterator();
-          while (iter.hasNext()) {
-            if (oldStore.equals(iter.next().getColumnKey())) {
-              synchronized (this) {
-                iter.remove();
-              }
-            }
+          if (newCfg != null && newCfg.getStore() != null) {
+            loadStore(projectName, newCfg.getStore(), newCfg.getBranches(),
+                newCfg.getManifestPathPattern());
           }
-        }
-      }
-
-      if (newCfg != null) {
-        loadStoreFromProjectConfig(event.getProjectName(), newCfg);
       }
     } catch (IOException | ConfigInvalidException
             | JAXBException | LimitExceededException e) {
@@ -469,47 +1432,123 @@ public class ManifestSubscription implements
     }
   }
 
-  private void loadStoreFromProjectConfig(String projectName,
-                                          ProjectConfig config)
+  /**
+   * Apply a change of the branches of a manifest source that keeps its store
+   */
+  private void updateBranches(String projectName, PluginProjectConfig loaded,
+                              Set<String> configured)
           throws JAXBException, IOException,
-          ConfigInvalidException , LimitExceededException {
-    String newStore = config.getPluginConfig(pluginName).getString(KEY_STORE);
+          ConfigInvalidException, LimitExceededException {
+    String store = loaded.getStore();
+    Set<String> branches = resolveBranches(projectName, configured);
+    checkBranchesSize(branches.size());
+
+    if (branches.isEmpty()) {
+      removeManifestSource(projectName, store);
+      return;
+    }
+    enabledManifestSource.put(projectName,
+        new PluginProjectConfig(store, branches,
+            loaded.getManifestPathPattern()));
+
+    for (String branch : Sets.difference(loaded.getBranches(), branches)) {
+      includeGraphs.remove(SubscriptionIndexFile.key(projectName, branch));
+      sourceCommits.remove(SubscriptionIndexFile.key(projectName, branch));
+      usage.remove(SubscriptionIndexFile.key(projectName, branch));
+      for (String branchPath : index.removeBranch(store, branch)) {
+        pendingSnapshots.remove(store + "\n" + branchPath);
+      }
+    }
+
+    if (ManifestSubscriptionConfig.isLazyLoad()) {
+      // loaded on first use
+      return;
+    }
+    for (String branch : Sets.difference(branches, loaded.getBranches())) {
+      processManifestBranch(projectName, branch);
+    }
+  }
 
+  private static void removeKeysStartingWith(Map<String, ?> map,
+                                             String prefix) {
+    Iterator<String> keys = map.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+
+  private void removeManifestSource(String projectName, String store) {
+    enabledManifestSource.remove(projectName);
+    sourcesVersion.incrementAndGet();
+    String prefix = SubscriptionIndexFile.key(projectName, "");
+    removeKeysStartingWith(includeGraphs, prefix);
+    removeKeysStartingWith(sourceCommits, prefix);
+    usage.removeStartingWith(prefix);
+    for (String branchPath : index.removeStore(store)) {
+      pendingSnapshots.remove(store + "\n" + branchPath);
+    }
+  }
+
+  /**
+   * @param pathPattern manifests of the source, null for the configured
+   *                    pattern
+   */
+  private void loadStore(String projectName, String newStore,
+                         Set<String> configured, String pathPattern)
+          throws JAXBException, IOException,
+          ConfigInvalidException , LimitExceededException {
     if (newStore != null && !newStore.isEmpty()) {
       newStore = newStore.trim();
-      Set<String> branches = Sets.newHashSet(
-              config.getPluginConfig(pluginName).getStringList(KEY_BRANCH));
-
-      if (branches.size() == 0) {
-        Iterator<String> i = gitRepoManager
-                .openRepository(new Project.NameKey(projectName))
-                .getAllRefs().keySet().iterator();
-        while (i.hasNext()) {
-          String branch = i.next();
-          if (branch.startsWith(REFS_HEADS)) {
-            branches.add(branch.replace(REFS_HEADS, ""));
-          }
-        }
-      }
+      Set<String> branches = resolveBranches(projectName, configured);
 
       checkBranchesSize(branches.size());
 
       if (branches.size() > 0) {
-        PluginProjectConfig ppc = new PluginProjectConfig(newStore, branches);
+        PluginProjectConfig ppc =
+            new PluginProjectConfig(newStore, branches, pathPattern);
 
         enabledManifestSource.put(projectName, ppc);
-        Project.NameKey nameKey = new Project.NameKey(projectName);
-        VersionedManifests versionedManifests;
+        sourcesVersion.incrementAndGet();
         for (String branch : branches) {
-          versionedManifests = parseManifests(nameKey, branch);
-          processManifestChange(versionedManifests, projectName, branch, null);
+          if (restoreBranch(projectName, newStore, branch, pathPattern) ||
+              ManifestSubscriptionConfig.isLazyLoad()) {
+            // restored, or loaded on first use
+            continue;
+          }
+          processManifestBranch(projectName, branch);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the configured branches, every branch of the project if none
+   */
+  private Set<String> resolveBranches(String projectName,
+                                      Set<String> configured)
+      throws IOException {
+    Set<String> branches = Sets.newHashSet(configured);
+    if (branches.size() == 0) {
+      try (Repository r = gitRepoManager.openRepository(
+          new Project.NameKey(projectName))) {
+        for (String branch : r.getAllRefs().keySet()) {
+          if (branch.startsWith(REFS_HEADS)) {
+            branches.add(branch.replace(REFS_HEADS, ""));
+          }
         }
       }
     }
+    return branches;
   }
 
   private void processManifestBranchCreated(String projectName, String branch) {
     PluginProjectConfig ppc = enabledManifestSource.get(projectName);
+    if (ppc == null) {
+      // removed while the event was queued
+      return;
+    }
     Set<String> branches = ppc.getBranches();
 
     try {
@@ -519,11 +1558,8 @@ public class ManifestSubscription implements
       return;
     }
 
-    Project.NameKey nameKey = new Project.NameKey(projectName);
-    VersionedManifests versionedManifests;
     try {
-      versionedManifests = parseManifests(nameKey, branch);
-      processManifestChange(versionedManifests, projectName, branch, null);
+      processManifestBranch(projectName, branch);
     } catch (JAXBException | IOException | ConfigInvalidException e) {
       log.error(e.getMessage(), e);
     }
@@ -536,40 +1572,110 @@ public class ManifestSubscription implements
     }
   }
 
-  private ProjectConfig parseConfig(Project.NameKey p, String idStr)
+  /**
+   * Only the plugin section of project.config is read, the rest of the
+   * project configuration is of no interest here
+   *
+   * @return configured store (null if none) and branches, null if there is
+   * no such commit
+   */
+  private PluginProjectConfig parsePluginConfig(Project.NameKey p,
+                                                String idStr)
       throws IOException, ConfigInvalidException {
     ObjectId id = ObjectId.fromString(idStr);
     if (ObjectId.zeroId().equals(id)) {
       return null;
     }
-    return ProjectConfig.read(metaDataUpdateFactory.create(p), id);
+    try (Repository r = gitRepoManager.openRepository(p)) {
+      return parsePluginConfig(p, r, id);
+    }
   }
 
-  private VersionedManifests parseManifests(Event event)
-      throws JAXBException, IOException, ConfigInvalidException {
-    Project.NameKey p = new Project.NameKey(event.getProjectName());
-    return parseManifests(p, event.getRefName());
+  /**
+   * @return plugin config of the cached project state, null if the project
+   * is gone
+   */
+  private PluginProjectConfig getCachedPluginConfig(Project.NameKey p)
+      throws IOException {
+    ProjectState state = projectCache.checkedGet(p);
+    if (state == null) {
+      return null;
+    }
+    PluginConfig cfg = cfgFactory.getFromProjectConfig(state, pluginName);
+    String store = cfg.getString(KEY_STORE);
+    store = store == null ? null : Strings.emptyToNull(store.trim());
+    return new PluginProjectConfig(store,
+        Sets.newHashSet(cfg.getStringList(KEY_BRANCH)),
+        checkPathPattern(p.get(), cfg.getString(KEY_MANIFEST_PATH_PATTERN)));
+  }
+
+  /**
+   * @return the pattern, null to use the one of gerrit.config when there is
+   * none or it is not a valid regular expression
+   */
+  private static String checkPathPattern(String projectName, String pattern) {
+    pattern = Strings.emptyToNull(pattern);
+    if (pattern != null) {
+      try {
+        Pattern.compile(pattern);
+      } catch (PatternSyntaxException e) {
+        log.error("Invalid " + KEY_MANIFEST_PATH_PATTERN + " in " +
+            projectName + ", using the default", e);
+        return null;
+      }
+    }
+    return pattern;
   }
 
-  private VersionedManifests parseManifests(Project.NameKey p, String refName)
+  private PluginProjectConfig parsePluginConfig(Project.NameKey p,
+                                                Repository r, ObjectId id)
+      throws IOException, ConfigInvalidException {
+    Config cfg = new Config();
+    try (RevWalk walk = new RevWalk(r);
+         TreeWalk treeWalk = TreeWalk.forPath(r, ProjectConfig.PROJECT_CONFIG,
+             walk.parseCommit(id).getTree())) {
+      if (treeWalk != null) {
+        cfg.fromText(RawParseUtils.decode(
+            r.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes()));
+      }
+    }
+
+    String store = cfg.getString("plugin", pluginName, KEY_STORE);
+    store = store == null ? null : Strings.emptyToNull(store.trim());
+    return new PluginProjectConfig(store, Sets.newHashSet(
+        cfg.getStringList("plugin", pluginName, KEY_BRANCH)),
+        checkPathPattern(p.get(),
+            cfg.getString("plugin", pluginName, KEY_MANIFEST_PATH_PATTERN)));
+  }
+
+  /**
+   * @return manifests of the branch, read from the session's repository as
+   * long as the session is open
+   */
+  private VersionedManifests parseManifests(RepoSession session,
+                                            Project.NameKey p, String refName)
       throws IOException, JAXBException, ConfigInvalidException {
 
-    Repository repo = gitRepoManager.openRepository(p);
+    Repository repo = session.open(p);
     ObjectId commitId = repo.resolve(refName);
-    MetaDataUpdate update = metaDataUpdateFactory.create(p);
     VersionedManifests vManifests = new VersionedManifests(refName);
-    vManifests.load(update, commitId);
+    PluginProjectConfig ppc = enabledManifestSource.get(p.get());
+    if (ppc != null) {
+      vManifests.setManifestPathPattern(ppc.getManifestPathPattern());
+    }
+    vManifests.load(repo, commitId);
 
     return vManifests;
   }
 
-  private void updateManifest(String projectName, String refName,
-                              Manifest manifest, String manifestSrc,
-                              String extraCommitMsg)
+  private ObjectId updateManifest(RepoSession session, String projectName,
+                                  String refName, Manifest manifest,
+                                  String manifestSrc, String extraCommitMsg)
       throws JAXBException, IOException, GitAPIException {
-    Utilities.updateManifest(gitRepoManager, metaDataUpdateFactory,
-            tagCache, gitRefUpdated, identifiedUser, projectName, refName,
-            manifest, manifestSrc, extraCommitMsg, null);
+    return Utilities.updateManifest(
+            session.open(new Project.NameKey(projectName)),
+            serverIdent.get(), tagCache, gitRefUpdated, identifiedUser,
+            projectName, refName, manifest, manifestSrc, extraCommitMsg, null);
   }
 
 }
@@ -1,16 +1,31 @@
 package com.amd.gerrit.plugins.manifestsubscription;
 
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.inject.Inject;
 
+import java.util.concurrent.TimeUnit;
+
 public class ManifestSubscriptionConfig {
     static final String CONFIG_MAX_BRANCHES_PER_REPO = "maxBranchesPerRepo";
     static final String CONFIG_MANIFEST_PATH_PATTERN = "manifestPathPattern";
+    static final String CONFIG_EVENT_THREADS = "eventThreads";
+    static final String CONFIG_EVENT_QUEUE_SIZE = "eventQueueSize";
+    static final String CONFIG_SNAPSHOT_COALESCE_WINDOW =
+            "snapshotCoalesceWindow";
+    static final String CONFIG_LAZY_LOAD = "lazyLoad";
+    static final String CONFIG_IDLE_BRANCH_TIMEOUT = "idleBranchTimeout";
 
     static final int DEFAULT_MAX_BRANCHES_PER_REPO = 1000;
     static final String DEFAULT_MANIFEST_PATH_PATTERN = ".*\\.xml";
+    static final int DEFAULT_EVENT_THREADS =
+            Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_EVENT_QUEUE_SIZE = 1000;
+    static final long DEFAULT_SNAPSHOT_COALESCE_WINDOW = 0;
+    static final boolean DEFAULT_LAZY_LOAD = false;
+    static final long DEFAULT_IDLE_BRANCH_TIMEOUT = 0;
 
     @Inject
     private static PluginConfigFactory cfgFactory;
@@ -21,6 +36,12 @@ public class ManifestSubscriptionConfig {
 
     private static int maxBranchesPerRepo;
     private static String manifestPathPattern;
+    private static int eventThreads = DEFAULT_EVENT_THREADS;
+    private static int eventQueueSize = DEFAULT_EVENT_QUEUE_SIZE;
+    private static long snapshotCoalesceWindow =
+            DEFAULT_SNAPSHOT_COALESCE_WINDOW;
+    private static boolean lazyLoad = DEFAULT_LAZY_LOAD;
+    private static long idleBranchTimeout = DEFAULT_IDLE_BRANCH_TIMEOUT;
 
     public static void readConfig() {
         PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName);
@@ -28,6 +49,17 @@ public class ManifestSubscriptionConfig {
                 DEFAULT_MAX_BRANCHES_PER_REPO);
         manifestPathPattern = cfg.getString(CONFIG_MANIFEST_PATH_PATTERN,
                 DEFAULT_MANIFEST_PATH_PATTERN);
+        eventThreads = cfg.getInt(CONFIG_EVENT_THREADS,
+                DEFAULT_EVENT_THREADS);
+        eventQueueSize = cfg.getInt(CONFIG_EVENT_QUEUE_SIZE,
+                DEFAULT_EVENT_QUEUE_SIZE);
+        snapshotCoalesceWindow = ConfigUtil.getTimeUnit(
+                cfg.getString(CONFIG_SNAPSHOT_COALESCE_WINDOW),
+                DEFAULT_SNAPSHOT_COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+        lazyLoad = cfg.getBoolean(CONFIG_LAZY_LOAD, DEFAULT_LAZY_LOAD);
+        idleBranchTimeout = ConfigUtil.getTimeUnit(
+                cfg.getString(CONFIG_IDLE_BRANCH_TIMEOUT),
+                DEFAULT_IDLE_BRANCH_TIMEOUT, TimeUnit.MILLISECONDS);
     }
 
     public static int getMaxBranchesPerRepo() {
@@ -37,4 +69,36 @@ public class ManifestSubscriptionConfig {
     public static String getManifestPathPattern() {
         return manifestPathPattern;
     }
-}
\ No newline at end of file
+
+    public static int getEventThreads() {
+        return eventThreads;
+    }
+
+    public static int getEventQueueSize() {
+        return eventQueueSize;
+    }
+
+    /**
+     * @return milliseconds to collect project updates into one snapshot
+     * commit per store branch, 0 to commit every update right away
+     */
+    public static long getSnapshotCoalesceWindow() {
+        return snapshotCoalesceWindow;
+    }
+
+    /**
+     * @return true to load a manifest source branch on first use instead of
+     * at startup
+     */
+    public static boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    /**
+     * @return milliseconds a lazily loaded branch stays loaded without use,
+     * 0 to keep it until restart
+     */
+    public static long getIdleBranchTimeout() {
+        return idleBranchTimeout;
+    }
+}
@@ -0,0 +1,304 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Annotation;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Copyfile;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Default;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.ExtendProject;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Include;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Linkfile;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Remote;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.RemoveProject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the manifest model as XML in a single pass, byte for byte what the
+ * JAXB marshaller with formatted output writes: same declaration, element
+ * and attribute order, indentation and escaping.  Snapshot blobs therefore
+ * keep their ids whichever of the two wrote them.
+ */
+class ManifestWriter {
+  private static final String DECLARATION =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+  private static final String INDENT = "    ";
+
+  /**
+   * Annotation.getKeep() answers the DTD default when the attribute is not
+   * set, JAXB reads the field and only writes the attribute when set
+   */
+  private static final Field ANNOTATION_KEEP;
+
+  static {
+    try {
+      ANNOTATION_KEEP = Annotation.class.getDeclaredField("keep");
+      ANNOTATION_KEEP.setAccessible(true);
+    } catch (NoSuchFieldException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final Writer out;
+  private int depth;
+
+  private ManifestWriter(Writer out) {
+    this.out = out;
+  }
+
+  static void write(Manifest manifest, OutputStream output)
+      throws IOException {
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    writer.write(DECLARATION);
+    new ManifestWriter(writer).writeManifest(manifest);
+    writer.flush();
+  }
+
+  private void writeManifest(Manifest manifest) throws IOException {
+    startElement("manifest");
+    if (manifest.getNotice() == null && manifest.getRemote().isEmpty() &&
+        manifest.getDefault() == null && manifest.getManifestServer() == null &&
+        manifest.getRemoveProject().isEmpty() &&
+        manifest.getProject().isEmpty() &&
+        manifest.getExtendProject().isEmpty() &&
+        manifest.getRepoHooks() == null && manifest.getInclude().isEmpty()) {
+      endEmptyElement();
+      return;
+    }
+    endStartTag();
+
+    if (manifest.getNotice() != null) {
+      indent();
+      out.write("<notice>");
+      text(manifest.getNotice());
+      out.write("</notice>\n");
+    }
+    for (Remote remote : manifest.getRemote()) {
+      startElement("remote");
+      attribute("name", remote.getName());
+      attribute("alias", remote.getAlias());
+      attribute("fetch", remote.getFetch());
+      attribute("review", remote.getReview());
+      attribute("revision", remote.getRevision());
+      endEmptyElement();
+    }
+    Default d = manifest.getDefault();
+    if (d != null) {
+      startElement("default");
+      attribute("remote", remoteName(d.getRemote()));
+      attribute("revision", d.getRevision());
+      attribute("dest-branch", d.getDestBranch());
+      attribute("sync-j", d.getSyncJ());
+      attribute("sync-c", d.getSyncC());
+      attribute("sync-s", d.getSyncS());
+      endEmptyElement();
+    }
+    if (manifest.getManifestServer() != null) {
+      startElement("manifest-server");
+      attribute("url", manifest.getManifestServer().getUrl());
+      endEmptyElement();
+    }
+    for (RemoveProject rp : manifest.getRemoveProject()) {
+      startElement("remove-project");
+      attribute("name", rp.getName());
+      endEmptyElement();
+    }
+    for (Project project : manifest.getProject()) {
+      writeProject(project);
+    }
+    for (ExtendProject ep : manifest.getExtendProject()) {
+      startElement("extend-project");
+      attribute("name", ep.getName());
+      attribute("path", ep.getPath());
+      attribute("groups", ep.getGroups());
+      endEmptyElement();
+    }
+    if (manifest.getRepoHooks() != null) {
+      startElement("repo-hooks");
+      attribute("in-project", manifest.getRepoHooks().getInProject());
+      attribute("enabled-list", manifest.getRepoHooks().getEnabledList());
+      endEmptyElement();
+    }
+    for (Include include : manifest.getInclude()) {
+      startElement("include");
+      attribute("name", include.getName());
+      endEmptyElement();
+    }
+
+    endElement("manifest");
+  }
+
+  private void writeProject(Project project) throws IOException {
+    startElement("project");
+    attribute("name", project.getName());
+    attribute("path", project.getPath());
+    attribute("remote", remoteName(project.getRemote()));
+    attribute("revision", project.getRevision());
+    attribute("dest-branch", project.getDestBranch());
+    attribute("groups", project.getGroups());
+    attribute("sync-c", project.getSyncC());
+    attribute("sync-s", project.getSyncS());
+    attribute("upstream", project.getUpstream());
+    attribute("clone-depth", project.getCloneDepth());
+    attribute("force-path", project.getForcePath());
+    if (project.getAnnotation().isEmpty() && project.getProject().isEmpty() &&
+        project.getCopyfile().isEmpty() && project.getLinkfile().isEmpty()) {
+      endEmptyElement();
+      return;
+    }
+    endStartTag();
+
+    for (Annotation annotation : project.getAnnotation()) {
+      startElement("annotation");
+      attribute("name", annotation.getName());
+      attribute("value", annotation.getValue());
+      attribute("keep", getKeep(annotation));
+      endEmptyElement();
+    }
+    for (Project nested : project.getProject()) {
+      writeProject(nested);
+    }
+    for (Copyfile copyfile : project.getCopyfile()) {
+      startElement("copyfile");
+      attribute("src", copyfile.getSrc());
+      attribute("dest", copyfile.getDest());
+      endEmptyElement();
+    }
+    for (Linkfile linkfile : project.getLinkfile()) {
+      startElement("linkfile");
+      attribute("src", linkfile.getSrc());
+      attribute("dest", linkfile.getDest());
+      endEmptyElement();
+    }
+
+    endElement("project");
+  }
+
+  private static String getKeep(Annotation annotation) {
+    try {
+      return (String) ANNOTATION_KEEP.get(annotation);
+    } catch (IllegalAccessException e) {
+      return annotation.getKeep();
+    }
+  }
+
+  /**
+   * @return the name of the remote an IDREF attribute points to
+   */
+  private static String remoteName(Object remote) {
+    if (remote instanceof Remote) {
+      return ((Remote) remote).getName();
+    }
+    return remote == null ? null : remote.toString();
+  }
+
+  private void indent() throws IOException {
+    for (int i = 0; i < depth; i++) {
+      out.write(INDENT);
+    }
+  }
+
+  private void startElement(String name) throws IOException {
+    indent();
+    out.write('<');
+    out.write(name);
+  }
+
+  private void endStartTag() throws IOException {
+    out.write(">\n");
+    depth++;
+  }
+
+  private void endEmptyElement() throws IOException {
+    out.write("/>\n");
+  }
+
+  private void endElement(String name) throws IOException {
+    depth--;
+    indent();
+    out.write("</");
+    out.write(name);
+    out.write(">\n");
+  }
+
+  private void attribute(String name, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    out.write(' ');
+    out.write(name);
+    out.write("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          out.write("&amp;");
+          break;
+        case '<':
+          out.write("&lt;");
+          break;
+        case '>':
+          out.write("&gt;");
+          break;
+        case '"':
+          out.write("&quot;");
+          break;
+        case '\t':
+          out.write("&#x9;");
+          break;
+        case '\n':
+          out.write("&#xA;");
+          break;
+        case '\r':
+          out.write("&#xD;");
+          break;
+        default:
+          out.write(c);
+      }
+    }
+    out.write('"');
+  }
+
+  private void text(String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          out.write("&amp;");
+          break;
+        case '<':
+          out.write("&lt;");
+          break;
+        case '>':
+          out.write("&gt;");
+          break;
+        case '\r':
+          out.write("&#xD;");
+          break;
+        default:
+          out.write(c);
+      }
+    }
+  }
+}
@@ -37,6 +37,10 @@ class Module extends AbstractModule {
             });
     requestStaticInjection(ManifestSubscriptionConfig.class);
 
+    install(ManifestCache.module());
+    requestStaticInjection(ManifestCache.class);
+    requestStaticInjection(SnapshotMetrics.class);
+
     bind(ManifestSubscription.class).in(Scopes.SINGLETON);
 
     DynamicSet.bind(binder(), LifecycleListener.class)
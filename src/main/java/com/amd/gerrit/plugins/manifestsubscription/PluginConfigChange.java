@@ -0,0 +1,67 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import java.util.Objects;
+
+/**
+ * What an update of refs/meta/config of a project changes for its manifest
+ * source
+ */
+enum PluginConfigChange {
+  /**
+   * access rights, labels... nothing this plugin reads
+   */
+  NONE,
+
+  /**
+   * same store and manifests, only the watched branches are added or
+   * removed
+   */
+  BRANCHES,
+
+  /**
+   * store or manifest paths changed, or the source is enabled or disabled.
+   * What is loaded is removed and the new config is loaded.
+   */
+  RELOAD;
+
+  /**
+   * @param oldCfg plugin config before the update, null if there was none
+   * @param newCfg plugin config after the update, null if there is none
+   * @param loaded config of the manifest source currently loaded, null if
+   *               the project isn't one
+   */
+  static PluginConfigChange of(PluginProjectConfig oldCfg,
+                               PluginProjectConfig newCfg,
+                               PluginProjectConfig loaded) {
+    String oldStore = oldCfg == null ? null : oldCfg.getStore();
+    String newStore = newCfg == null ? null : newCfg.getStore();
+
+    if (Objects.equals(oldStore, newStore) && (newStore == null ||
+        (oldCfg.getBranches().equals(newCfg.getBranches()) &&
+            Objects.equals(oldCfg.getManifestPathPattern(),
+                newCfg.getManifestPathPattern())))) {
+      return NONE;
+    }
+
+    if (loaded != null && loaded.getStore().equals(newStore) &&
+        Objects.equals(loaded.getManifestPathPattern(),
+            newCfg.getManifestPathPattern())) {
+      return BRANCHES;
+    }
+    return RELOAD;
+  }
+}
@@ -19,10 +19,17 @@ import java.util.Set;
 public class PluginProjectConfig {
   private String store;
   private Set<String> branches;
+  private String manifestPathPattern;
 
   public PluginProjectConfig(String store, Set<String> branches) {
+    this(store, branches, null);
+  }
+
+  public PluginProjectConfig(String store, Set<String> branches,
+                             String manifestPathPattern) {
     this.store = store;
     this.branches = branches;
+    this.manifestPathPattern = manifestPathPattern;
   }
 
   public String getStore() {
@@ -40,4 +47,16 @@ public class PluginProjectConfig {
   public void setBranches(Set<String> branches) {
     this.branches = branches;
   }
+
+  /**
+   * @return paths of the manifests in this source, null for the pattern
+   * configured in gerrit.config
+   */
+  public String getManifestPathPattern() {
+    return manifestPathPattern;
+  }
+
+  public void setManifestPathPattern(String manifestPathPattern) {
+    this.manifestPathPattern = manifestPathPattern;
+  }
 }
@@ -0,0 +1,82 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Repositories used while handling one event.  However many snapshot
+ * branches the event fans out to, each repository and its walk are opened
+ * once, and all of them are released when the session is closed.
+ *
+ * Not thread safe, a session belongs to the task that opened it.
+ */
+class RepoSession implements AutoCloseable {
+  private final GitRepositoryManager gitRepoManager;
+  private final Map<Project.NameKey, Repository> repos = Maps.newHashMap();
+  private final Map<Project.NameKey, RevWalk> walks = Maps.newHashMap();
+
+  RepoSession(GitRepositoryManager gitRepoManager) {
+    this.gitRepoManager = gitRepoManager;
+  }
+
+  GitRepositoryManager getRepoManager() {
+    return gitRepoManager;
+  }
+
+  /**
+   * @return the repository, closed with the session
+   */
+  Repository open(Project.NameKey p) throws IOException {
+    Repository r = repos.get(p);
+    if (r == null) {
+      r = gitRepoManager.openRepository(p);
+      repos.put(p, r);
+    }
+    return r;
+  }
+
+  /**
+   * @return walk over the repository, its reader also serves blob and tree
+   * reads.  Closed with the session.
+   */
+  RevWalk walk(Project.NameKey p) throws IOException {
+    RevWalk walk = walks.get(p);
+    if (walk == null) {
+      walk = new RevWalk(open(p));
+      walks.put(p, walk);
+    }
+    return walk;
+  }
+
+  @Override
+  public void close() {
+    for (RevWalk walk : walks.values()) {
+      walk.close();
+    }
+    walks.clear();
+    for (Repository r : repos.values()) {
+      r.close();
+    }
+    repos.clear();
+  }
+}
@@ -21,6 +21,10 @@ import com.google.gerrit.sshd.SshCommand;
 import com.google.inject.Inject;
 import org.kohsuke.args4j.Option;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
 @RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
 @CommandMetaData(name = "show", description = "Show states of manifest-subscription")
 public class ShowSubscriptionCommand extends SshCommand {
@@ -32,8 +36,28 @@ public class ShowSubscriptionCommand extends SshCommand {
       usage = "", required = false)
   private Utilities.OutputType outputType;
 
+  @Option(name = "-l", aliases = {"--load"}, metaVar = "PROJECT:BRANCH",
+      usage = "load a manifest source branch first", required = false)
+  private List<String> load = new ArrayList<>();
+
   @Override
   protected void run() {
+    for (String projectBranch : load) {
+      // branch names can't contain ':'
+      int colon = projectBranch.lastIndexOf(':');
+      try {
+        if (colon < 0 || !manifestSubscription.loadManifestBranch(
+            projectBranch.substring(0, colon),
+            projectBranch.substring(colon + 1))) {
+          stderr.println("Not a manifest source branch: " + projectBranch);
+        }
+      } catch (RejectedExecutionException e) {
+        stderr.println(e.getMessage() + ", not loaded: " + projectBranch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
     Utilities.showSubscription(manifestSubscription, stdout,
         outputType==Utilities.OutputType.JSON);
   }
@@ -22,19 +22,42 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Set;
 
 @Export("/show")
 @Singleton
 public class ShowSubscriptionServlet extends HttpServlet {
+  static final String PENDING_EVENTS_HEADER = "X-Pending-Events";
+
   @Inject
   private ManifestSubscription manifestSubscription;
 
   protected void doGet(HttpServletRequest req, HttpServletResponse res)
                                                             throws IOException {
+    // everything shown is read once, the tag covers all of it
+    long sourcesVersion = manifestSubscription.getSourcesVersion();
+    Set<String> repos = manifestSubscription.getEnabledManifestSource();
+    SubscriptionSnapshot subscriptions =
+        manifestSubscription.getSubscriptions();
+    boolean ready = manifestSubscription.isReady();
+
+    // changes with every queued event, sent outside of the tagged body
+    res.setHeader(PENDING_EVENTS_HEADER,
+        Integer.toString(manifestSubscription.getPendingEvents()));
+
+    String etag = "W/\"" + manifestSubscription.getInstanceId() +
+        "-" + subscriptions.getGeneration() + "-" + sourcesVersion +
+        "-" + ready + "\"";
+    if (etag.equals(req.getHeader("If-None-Match"))) {
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    res.setHeader("ETag", etag);
+
     res.setContentType("application/json");
     res.setCharacterEncoding("UTF-8");
 
-    res.getWriter().write("Hello\n");
-    Utilities.showSubscription(manifestSubscription, res.getWriter(), true);
+    Utilities.showSubscription(repos, subscriptions, ready, null,
+        res.getWriter(), true);
   }
 }
@@ -0,0 +1,231 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gerrit.server.git.TagCache;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot manifest updates of existing store branches, written together:
+ * the commits and tags of all the branches go through one inserter flushed
+ * once, and the branches are moved by one BatchRefUpdate, atomic where the
+ * ref database supports it.  The commits the branches were moved to are
+ * tagged by a second one, a branch that failed to move is not tagged.
+ * Same commits, tags and events as one {@link Utilities#updateManifest} per
+ * branch.
+ */
+class SnapshotBatch implements AutoCloseable {
+  private static final Logger log =
+      LoggerFactory.getLogger(SnapshotBatch.class);
+
+  private final Repository repo;
+  private final RevWalk walk;
+  private final PersonIdent ident;
+  private final ObjectInserter inserter;
+
+  /**
+   * ref name, blob of the snapshot manifest once the batch is executed
+   */
+  private final Map<String, ObjectId> blobs = Maps.newHashMap();
+  private final List<ReceiveCommand> commands = Lists.newArrayList();
+
+  /**
+   * commit to its tag, branches with the same parent and manifest get the
+   * same commit, it is tagged once
+   */
+  private final Map<ObjectId, ReceiveCommand> tags = Maps.newLinkedHashMap();
+
+  /**
+   * @param walk walk over repo, its reader reads the current trees
+   * @param ident author, committer and tagger
+   */
+  SnapshotBatch(Repository repo, RevWalk walk, PersonIdent ident) {
+    this.repo = repo;
+    this.walk = walk;
+    this.ident = ident;
+    this.inserter = repo.newObjectInserter();
+  }
+
+  /**
+   * Write the commit (and tag) of the manifest, nothing if the branch
+   * already has the same manifest.  The branch is only moved by
+   * {@link #execute}.
+   *
+   * @return false if there is no such branch, it has to be created
+   * the usual way
+   */
+  boolean add(String refName, Manifest manifest, String manifestSrc,
+              String extraCommitMsg) throws IOException {
+    Ref ref = repo.exactRef(refName);
+    if (ref == null || ref.getObjectId() == null) {
+      return false;
+    }
+    RevCommit parent = walk.parseCommit(ref.getObjectId());
+
+    DirCache tree = DirCache.newInCore();
+    DirCacheBuilder builder = tree.builder();
+    builder.addTree(new byte[] {}, DirCacheEntry.STAGE_0,
+        walk.getObjectReader(), parent.getTree());
+    builder.finish();
+
+    final ObjectId blob;
+    VersionedManifests.SaveBuffer buffer =
+        VersionedManifests.SaveBuffer.acquire();
+    try {
+      ManifestWriter.write(manifest, buffer);
+      blob = buffer.idFor(inserter);
+      blobs.put(refName, blob);
+      DirCacheEntry current =
+          tree.getEntry(ManifestSubscription.SNAPSHOT_PATH);
+      if (current != null && current.getObjectId().equals(blob)) {
+        // same manifest, nothing committed, tagged or announced
+        SnapshotMetrics.unchanged();
+        return true;
+      }
+      buffer.insert(inserter);
+    } finally {
+      buffer.release();
+    }
+
+    DirCacheEditor editor = tree.editor();
+    editor.add(new DirCacheEditor.PathEdit(ManifestSubscription.SNAPSHOT_PATH) {
+      @Override
+      public void apply(DirCacheEntry ent) {
+        ent.setFileMode(FileMode.REGULAR_FILE);
+        ent.setObjectId(blob);
+      }
+    });
+    editor.finish();
+
+    PersonIdent now = new PersonIdent(ident, System.currentTimeMillis(),
+        ident.getTimeZoneOffset());
+    CommitBuilder commit = new CommitBuilder();
+    commit.setParentId(parent);
+    commit.setTreeId(tree.writeTree(inserter));
+    commit.setAuthor(now);
+    commit.setCommitter(now);
+    commit.setMessage(
+        VersionedManifests.commitMessage(manifestSrc, extraCommitMsg));
+    ObjectId commitId = inserter.insert(commit);
+    commands.add(new ReceiveCommand(parent, commitId, refName));
+
+    if (Utilities.isTaggedSnapshot(RevCommit.parse(commit.build())) &&
+        !tags.containsKey(commitId)) {
+      String tagName = "snapshot/" + commitId.getName();
+      TagBuilder tag = new TagBuilder();
+      tag.setObjectId(commitId, Constants.OBJ_COMMIT);
+      tag.setTag(tagName);
+      tag.setTagger(now);
+      tags.put(commitId, new ReceiveCommand(ObjectId.zeroId(),
+          inserter.insert(tag), Constants.R_TAGS + tagName));
+    }
+    return true;
+  }
+
+  /**
+   * Flush what was written, move every branch, then tag the commits of the
+   * branches that moved
+   *
+   * @return ref name to blob of the snapshot manifest, for the branches now
+   * at the added manifest
+   */
+  Map<String, ObjectId> execute(Project.NameKey project, TagCache tagCache,
+                                GitReferenceUpdated gitRefUpdated,
+                                Account account) throws IOException {
+    inserter.flush();
+    if (commands.isEmpty()) {
+      return blobs;
+    }
+    execute(commands, project, tagCache, gitRefUpdated, account);
+
+    // not with the branches, where the batch may not be atomic
+    List<ReceiveCommand> tagCommands = Lists.newArrayList();
+    for (ReceiveCommand cmd : commands) {
+      if (cmd.getResult() == ReceiveCommand.Result.OK &&
+          tags.containsKey(cmd.getNewId())) {
+        tagCommands.add(tags.remove(cmd.getNewId()));
+      }
+    }
+    if (!tagCommands.isEmpty()) {
+      execute(tagCommands, project, tagCache, gitRefUpdated, account);
+    }
+    return blobs;
+  }
+
+  private void execute(List<ReceiveCommand> commands,
+                       Project.NameKey project, TagCache tagCache,
+                       GitReferenceUpdated gitRefUpdated, Account account)
+      throws IOException {
+    BatchRefUpdate batch = repo.getRefDatabase().newBatchUpdate();
+    // rejected as a whole otherwise
+    batch.setAtomic(repo.getRefDatabase().performsAtomicTransactions());
+    batch.setRefLogIdent(ident);
+    batch.setRefLogMessage("snapshot manifest updated", false);
+    batch.addCommand(commands);
+    batch.execute(walk, NullProgressMonitor.INSTANCE);
+
+    for (ReceiveCommand cmd : commands) {
+      if (cmd.getResult() == ReceiveCommand.Result.OK) {
+        if (cmd.getRefName().startsWith(Constants.R_TAGS)) {
+          tagCache.updateFastForward(project, cmd.getRefName(),
+              cmd.getOldId(), cmd.getNewId());
+        } else {
+          SnapshotMetrics.committed();
+        }
+      } else {
+        blobs.remove(cmd.getRefName());
+        log.warn("Failing to commit manifest subscription update:" +
+            "\n\tProject: " + project.get() +
+            "\n\tRef: " + cmd.getRefName() +
+            "\n\tResult: " + cmd.getResult() + " " + cmd.getMessage());
+      }
+    }
+    gitRefUpdated.fire(project, batch, account);
+  }
+
+  @Override
+  public void close() {
+    inserter.close();
+  }
+}
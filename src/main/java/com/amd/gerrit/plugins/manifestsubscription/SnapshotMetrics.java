@@ -0,0 +1,55 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+
+/**
+ * Snapshot manifest updates, committed or skipped because the store branch
+ * already had the same content.  Nothing is counted without injection
+ * (unit tests).
+ */
+class SnapshotMetrics {
+  private static Counter0 committed;
+  private static Counter0 unchanged;
+
+  @Inject
+  static void register(MetricMaker metricMaker) {
+    committed = metricMaker.newCounter("snapshot/committed",
+        new Description("Snapshot manifest updates committed")
+            .setRate()
+            .setUnit("updates"));
+    unchanged = metricMaker.newCounter("snapshot/unchanged",
+        new Description("Snapshot manifest updates skipped, the store"
+            + " branch already had the same manifest")
+            .setRate()
+            .setUnit("updates"));
+  }
+
+  static void committed() {
+    if (committed != null) {
+      committed.increment();
+    }
+  }
+
+  static void unchanged() {
+    if (unchanged != null) {
+      unchanged.increment();
+    }
+  }
+}
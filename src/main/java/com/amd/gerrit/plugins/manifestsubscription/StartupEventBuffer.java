@@ -0,0 +1,138 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Events received while the subscriptions are still being built at
+ * startup.  They are dispatched in the order received once it is done,
+ * events arriving meanwhile are dispatched after them.
+ *
+ * At most {@code capacity} events are held.  The thread delivering an event
+ * never waits: past that, events are dropped and only their keys are kept,
+ * once, for the owner to catch up with what they changed.
+ */
+class StartupEventBuffer<T> {
+  interface Dispatcher<T> {
+    void dispatch(T event);
+  }
+
+  /**
+   * What is kept of a dropped event
+   */
+  interface Keys<T> {
+    String of(T event);
+  }
+
+  private final Keys<T> keys;
+  private int capacity = Integer.MAX_VALUE;
+  private List<T> events = Lists.newArrayList();
+  private final Set<String> dropped = Sets.newLinkedHashSet();
+  private volatile boolean ready;
+  private boolean discarded;
+
+  StartupEventBuffer(Keys<T> keys) {
+    this.keys = keys;
+  }
+
+  /**
+   * @param capacity most events held, unbounded until set
+   */
+  synchronized void setCapacity(int capacity) {
+    this.capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Hold back the event unless ready, only its key while the buffer is full
+   *
+   * @return false if ready, the event has to be dispatched by the caller
+   */
+  boolean offer(T event) {
+    if (ready) {
+      return false;
+    }
+    synchronized (this) {
+      if (ready) {
+        return false;
+      }
+      if (discarded) {
+        return true;
+      }
+      if (events.size() < capacity) {
+        events.add(event);
+      } else {
+        dropped.add(keys.of(event));
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Dispatch the buffered events, then become ready.  Events are dispatched
+   * without holding the buffer, new ones keep being buffered behind them.
+   *
+   * @return number of events dispatched
+   */
+  int dispatch(Dispatcher<T> dispatcher) {
+    int dispatched = 0;
+    List<T> batch;
+    while (true) {
+      synchronized (this) {
+        batch = events;
+        if (batch.isEmpty() || discarded) {
+          events.clear();
+          ready = !discarded;
+          return dispatched;
+        }
+        events = Lists.newArrayList();
+      }
+      for (T event : batch) {
+        dispatcher.dispatch(event);
+      }
+      dispatched += batch.size();
+    }
+  }
+
+  /**
+   * Drop what is buffered and everything offered from now on
+   */
+  synchronized void discard() {
+    discarded = true;
+    events.clear();
+    dropped.clear();
+  }
+
+  /**
+   * @return keys of the events dropped while the buffer was full, in the
+   * order first dropped
+   */
+  synchronized Set<String> getDropped() {
+    return ImmutableSet.copyOf(dropped);
+  }
+
+  boolean isReady() {
+    return ready;
+  }
+
+  synchronized int size() {
+    return events.size();
+  }
+}
@@ -0,0 +1,288 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs subscription work off Gerrit's ref-updated dispatch thread.
+ *
+ * Work is partitioned into lanes by key (the manifest store).  Each lane is a
+ * single thread with a bounded queue, so everything submitted for one store
+ * is applied in submission order while different stores run in parallel.
+ * A task touching several stores holds all their lanes while it runs.
+ *
+ * Submitting never waits.  When a lane is full the task is dropped and its
+ * key overflows: every later task of the key is dropped too, until the lane
+ * has room again and the catch-up task of the key is queued in their place.
+ */
+class StoreEventQueue {
+  private static final Logger log =
+      LoggerFactory.getLogger(StoreEventQueue.class);
+
+  /**
+   * Work replacing the tasks of a key that were dropped
+   */
+  interface CatchUp {
+    Runnable forKey(String key);
+  }
+
+  private final Lane[] lanes;
+  private final CatchUp catchUp;
+
+  /**
+   * tasks queued in several lanes are queued in the same order in all of
+   * them, none waits for a lane held by one queued after it
+   */
+  private final Object multiLaneLock = new Object();
+
+  StoreEventQueue(String name, int threads, int queueSize, CatchUp catchUp) {
+    this.catchUp = catchUp;
+    lanes = new Lane[Math.max(1, threads)];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new Lane(name + "-" + i, Math.max(1, queueSize));
+    }
+  }
+
+  /**
+   * Queue a task behind every task previously submitted with the same key
+   *
+   * @return false if the lane is full, the task is replaced by the catch-up
+   * of the key
+   * @throws RejectedExecutionException if shut down
+   */
+  boolean execute(final String key, final Runnable task) {
+    return lanes[lane(key)].offer(Collections.singleton(key),
+        logged(key, task));
+  }
+
+  /**
+   * Queue a task behind every task previously submitted with any of the
+   * keys.  It runs once it reached the head of all their lanes, and nothing
+   * else runs in them meanwhile.
+   *
+   * @return false if one of the lanes is full, the task is replaced by the
+   * catch-up of every key
+   * @throws RejectedExecutionException if shut down
+   */
+  boolean execute(final Collection<String> keys, final Runnable task) {
+    SortedMap<Integer, List<String>> used = new TreeMap<>();
+    for (String key : keys) {
+      if (!used.containsKey(lane(key))) {
+        used.put(lane(key), Lists.<String>newArrayList());
+      }
+      used.get(lane(key)).add(key);
+    }
+    if (used.size() == 1) {
+      Map.Entry<Integer, List<String>> lane = used.entrySet().iterator().next();
+      return lanes[lane.getKey()].offer(lane.getValue(), logged(keys, task));
+    }
+
+    final CountDownLatch arrived = new CountDownLatch(used.size());
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicBoolean abandoned = new AtomicBoolean();
+    synchronized (multiLaneLock) {
+      int queued = 0;
+      boolean complete = false;
+      try {
+        for (Map.Entry<Integer, List<String>> lane : used.entrySet()) {
+          final boolean runs = queued == 0;
+          Runnable placeholder = new Runnable() {
+            @Override
+            public void run() {
+              arrived.countDown();
+              try {
+                arrived.await();
+                if (abandoned.get()) {
+                  return;
+                }
+                if (runs) {
+                  task.run();
+                } else {
+                  done.await();
+                }
+              } catch (RuntimeException e) {
+                log.error("Failed to process event for " + keys, e);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              } finally {
+                if (runs) {
+                  done.countDown();
+                }
+              }
+            }
+          };
+          if (!lanes[lane.getKey()].offer(lane.getValue(), placeholder)) {
+            break;
+          }
+          queued++;
+        }
+        complete = queued == used.size();
+      } finally {
+        if (!complete) {
+          // the placeholders already queued go through without waiting for
+          // the others
+          abandoned.set(true);
+          for (int i = queued; i < used.size(); i++) {
+            arrived.countDown();
+          }
+        }
+      }
+      if (!complete) {
+        for (String key : keys) {
+          lanes[lane(key)].overflow(key);
+        }
+      }
+      return complete;
+    }
+  }
+
+  /**
+   * @return number of tasks waiting or running across all lanes
+   */
+  int getQueueDepth() {
+    int depth = 0;
+    for (Lane lane : lanes) {
+      depth += lane.getQueue().size() + lane.getActiveCount();
+    }
+    return depth;
+  }
+
+  void shutdown() {
+    for (Lane lane : lanes) {
+      lane.shutdown();
+    }
+    try {
+      for (Lane lane : lanes) {
+        if (!lane.awaitTermination(30, TimeUnit.SECONDS)) {
+          log.warn("Dropping " + lane.shutdownNow().size() +
+              " pending manifest subscription events");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private int lane(String key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+  }
+
+  private static Runnable logged(final Object key, final Runnable task) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          log.error("Failed to process event for " + key, e);
+        }
+      }
+    };
+  }
+
+  /**
+   * One thread and its queue, with the keys whose tasks were dropped
+   */
+  private class Lane extends ThreadPoolExecutor {
+    /**
+     * in the order they overflowed, guarded by the lane
+     */
+    private final Set<String> overflowed = Sets.newLinkedHashSet();
+
+    Lane(String name, int queueSize) {
+      super(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(queueSize),
+          new ThreadFactoryBuilder()
+              .setNameFormat(name)
+              .setDaemon(true)
+              .build());
+    }
+
+    /**
+     * @param keys of the task in this lane
+     * @return false if one of the keys overflowed, now or before
+     */
+    synchronized boolean offer(Collection<String> keys, Runnable task) {
+      for (String key : keys) {
+        if (overflowed.contains(key)) {
+          overflowed.addAll(keys);
+          return false;
+        }
+      }
+      try {
+        execute(task);
+        return true;
+      } catch (RejectedExecutionException e) {
+        if (isShutdown()) {
+          throw e;
+        }
+      }
+      log.warn("Event queue of " + keys + " is full, dropping their events" +
+          " until they can catch up");
+      overflowed.addAll(keys);
+      return false;
+    }
+
+    /**
+     * Drop the tasks of the key until its catch-up is queued
+     */
+    synchronized void overflow(String key) {
+      overflowed.add(key);
+      queueCatchUps();
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+      super.afterExecute(r, t);
+      synchronized (this) {
+        queueCatchUps();
+      }
+    }
+
+    /**
+     * Queue the catch-up of every overflowed key there is room for, the
+     * tasks of the key are queued behind it again from now on
+     */
+    private void queueCatchUps() {
+      Iterator<String> keys = overflowed.iterator();
+      while (keys.hasNext() && getQueue().remainingCapacity() > 0 &&
+          !isShutdown()) {
+        String key = keys.next();
+        execute(logged(key, catchUp.forKey(key)));
+        keys.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,890 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Striped;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Lookup of snapshot manifests and the project branches they subscribe to.
+ *
+ * Changes are serialized per store with striped locks, so manifest sources
+ * writing to different stores can be reloaded at the same time.  Lookups
+ * never take a lock.  After every change an immutable
+ * {@link SubscriptionSnapshot} is published for readers that want a
+ * consistent view of all subscriptions.
+ *
+ * A store branch can subscribe to thousands of project branches, so the
+ * per subscription state is kept in primitive arrays: project branches are
+ * interned to int ids, every snapshot manifest gets an int slot, and each
+ * project branch keeps the slots subscribing to it.  Ids of project branches
+ * no longer subscribed are reclaimed once they outnumber the others: the
+ * store branches move to a fresh interner holding only the subscribed ones,
+ * each store branch refers to the interner its ids come from.
+ *
+ * Snapshot manifests are not kept in memory.  A store branch remembers the
+ * blob of its last written snapshot and the revisions changed since, a
+ * project being identified by its position in a depth first walk of the
+ * manifest.  The manifest is read back and patched only when written.
+ */
+class SubscriptionIndex {
+  private static final int STRIPES = 64;
+  private static final int[] NO_KEYS = new int[0];
+
+  /**
+   * fewest unused ids worth a compaction
+   */
+  private static final int MIN_UNUSED_KEYS = 1024;
+
+  private final Striped<Lock> storeLocks = Striped.lock(STRIPES);
+  private final Striped<Lock> keyLocks = Striped.lock(STRIPES);
+
+  /**
+   * manifest store lookup
+   * repo name, branch (branchPath), snapshot manifest
+   */
+  private final ConcurrentMap<String, ConcurrentMap<String, StoreBranch>>
+      manifestStores = Maps.newConcurrentMap();
+
+  /**
+   * interner of the store branches written from now on, replaced by
+   * {@link #compactKeys}
+   */
+  private volatile IdInterner<ProjectBranchKey> keys = new IdInterner<>();
+  private final Object compactLock = new Object();
+
+  /**
+   * lookup
+   * subscribed project name and branch, slots of the store branches
+   * subscribing to it
+   **/
+  private final ConcurrentMap<ProjectBranchKey, Postings> subscribedRepos =
+      Maps.newConcurrentMap();
+
+  /**
+   * slot, store branch (null when free)
+   * replaced when it grows, always modified holding slotLock
+   */
+  private volatile AtomicReferenceArray<StoreBranch> slots =
+      new AtomicReferenceArray<>(64);
+  private final Object slotLock = new Object();
+  private final Deque<Integer> freeSlots = new ArrayDeque<>();
+  private int nextSlot;
+
+  private final AtomicReference<SubscriptionSnapshot> snapshot =
+      new AtomicReference<>(SubscriptionSnapshot.EMPTY);
+
+  private static class StoreBranch {
+    final String store;
+
+    /**
+     * branch of the manifest source the snapshot manifest is generated
+     * from, branch names can contain '/' so the branchPath doesn't tell
+     */
+    final String branch;
+    final String branchPath;
+    final String manifestSrc;
+    int slot;
+
+    /**
+     * the ids of keys come from
+     */
+    final IdInterner<ProjectBranchKey> ids;
+
+    /**
+     * ids of the subscribed project branches, sorted, and the position of
+     * the manifest project following them at the same index
+     */
+    int[] keys = NO_KEYS;
+    int[] positions = NO_KEYS;
+    int projectCount;
+
+    /**
+     * last snapshot written to the store and the revisions changed since,
+     * by project position (null until something changed)
+     * modified holding the store lock
+     */
+    volatile ObjectId blob;
+    String[] revisions;
+
+    StoreBranch(String store, String branch, String branchPath,
+                String manifestSrc, IdInterner<ProjectBranchKey> ids) {
+      this.store = store;
+      this.branch = branch;
+      this.branchPath = branchPath;
+      this.manifestSrc = manifestSrc;
+      this.ids = ids;
+    }
+
+    /**
+     * @return index of the first position following the project branch,
+     * -1 if none
+     */
+    int first(ProjectBranchKey pbKey) {
+      return first(ids.getId(pbKey));
+    }
+
+    /**
+     * @return index of the first position following the key, -1 if none
+     */
+    int first(int key) {
+      int i = Arrays.binarySearch(keys, key);
+      if (i < 0) {
+        return -1;
+      }
+      while (i > 0 && keys[i - 1] == key) {
+        i--;
+      }
+      return i;
+    }
+  }
+
+  /**
+   * Slots subscribing to a project branch.  Never modified once published:
+   * adding writes past {@code size} of every earlier instance sharing the
+   * array, removing copies.
+   */
+  private static class Postings {
+    final int[] slots;
+    final int size;
+
+    Postings(int[] slots, int size) {
+      this.slots = slots;
+      this.size = size;
+    }
+
+    Postings add(int slot) {
+      int[] s = slots;
+      if (size == s.length) {
+        s = Arrays.copyOf(s, Math.max(4, size * 2));
+      }
+      s[size] = slot;
+      return new Postings(s, size + 1);
+    }
+
+    /**
+     * @return null if nothing is left
+     */
+    Postings remove(int slot) {
+      int[] s = new int[size];
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        if (slots[i] != slot) {
+          s[n++] = slots[i];
+        }
+      }
+      // shrinks with the subscriptions
+      return n == 0 ? null : new Postings(Arrays.copyOf(s, n), n);
+    }
+  }
+
+  /**
+   * Subscriptions of one snapshot manifest, detached from the index
+   */
+  static class Watched {
+    final String branchPath;
+    final String manifestSrc;
+    final int projectCount;
+
+    /**
+     * subscribed project branches and the position of the manifest project
+     * following them at the same index
+     */
+    final ProjectBranchKey[] keys;
+    final int[] positions;
+
+    Watched(String branchPath, String manifestSrc, int projectCount,
+            ProjectBranchKey[] keys, int[] positions) {
+      this.branchPath = branchPath;
+      this.manifestSrc = manifestSrc;
+      this.projectCount = projectCount;
+      this.keys = keys;
+      this.positions = positions;
+    }
+  }
+
+  boolean isSubscribed(ProjectBranchKey pbKey) {
+    return subscribedRepos.containsKey(pbKey);
+  }
+
+  /**
+   * @return true if the project stores snapshot manifests
+   */
+  boolean isStore(String project) {
+    Map<String, StoreBranch> branches = manifestStores.get(project);
+    return branches != null && !branches.isEmpty();
+  }
+
+  Set<String> getStores(ProjectBranchKey pbKey) {
+    Set<String> stores = Sets.newHashSet();
+    for (StoreBranch sb : getSubscribers(pbKey)) {
+      if (sb.first(pbKey) >= 0) {
+        stores.add(sb.store);
+      }
+    }
+    return stores;
+  }
+
+  /**
+   * @return branchPaths in the store with projects following the project
+   * branch
+   */
+  Set<String> getDestinations(ProjectBranchKey pbKey, String store) {
+    Set<String> destinations = Sets.newHashSet();
+    for (StoreBranch sb : getSubscribers(pbKey)) {
+      if (sb.store.equals(store) && sb.first(pbKey) >= 0) {
+        destinations.add(sb.branchPath);
+      }
+    }
+    return destinations;
+  }
+
+  /**
+   * @return blob of the last snapshot manifest written for the store
+   * branch, null if none was written yet
+   */
+  ObjectId getSnapshotBlob(String store, String branchPath) {
+    StoreBranch sb = getStoreBranch(store, branchPath);
+    return sb == null ? null : sb.blob;
+  }
+
+  String getManifestSource(String store, String branchPath) {
+    StoreBranch sb = getStoreBranch(store, branchPath);
+    return sb == null ? null : sb.manifestSrc;
+  }
+
+  /**
+   * @return branchPaths of every snapshot manifest in the store
+   */
+  Set<String> getBranchPaths(String store) {
+    Map<String, StoreBranch> branches = manifestStores.get(store);
+    return branches == null ?
+        Collections.<String>emptySet() : ImmutableSet.copyOf(branches.keySet());
+  }
+
+  /**
+   * @return branchPaths of the snapshot manifests generated from the
+   * manifest source branch in the store
+   */
+  Set<String> getBranchPaths(String store, String branch) {
+    Set<String> branchPaths = Sets.newHashSet();
+    Map<String, StoreBranch> branches = manifestStores.get(store);
+    if (branches != null) {
+      for (StoreBranch sb : branches.values()) {
+        if (sb.branch.equals(branch)) {
+          branchPaths.add(sb.branchPath);
+        }
+      }
+    }
+    return branchPaths;
+  }
+
+  /**
+   * @return branch of the manifest source the store branch is generated
+   * from, null if it is not watched
+   */
+  String getSourceBranch(String store, String branchPath) {
+    StoreBranch sb = getStoreBranch(store, branchPath);
+    return sb == null ? null : sb.branch;
+  }
+
+  /**
+   * @return the subscriptions as of the last completed change
+   */
+  SubscriptionSnapshot getSnapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * Record that the snapshot manifest of the store branch was written,
+   * revisions set so far are part of it
+   */
+  void setSnapshotBlob(String store, String branchPath, ObjectId blob) {
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      StoreBranch sb = getStoreBranch(store, branchPath);
+      if (sb != null) {
+        sb.blob = blob;
+        sb.revisions = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Set the revision of every project following the project branch in the
+   * snapshot manifest of the store branch
+   *
+   * @return false if the store branch doesn't follow the project branch
+   */
+  boolean setRevision(String store, String branchPath,
+                      ProjectBranchKey pbKey, String revision) {
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      StoreBranch sb = getStoreBranch(store, branchPath);
+      int i = sb == null ? -1 : sb.first(pbKey);
+      if (i < 0) {
+        return false;
+      }
+      int key = sb.keys[i];
+      if (sb.revisions == null) {
+        sb.revisions = new String[sb.projectCount];
+      }
+      for (; i < sb.keys.length && sb.keys[i] == key; i++) {
+        sb.revisions[sb.positions[i]] = revision;
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Apply the revisions set since the snapshot manifest was written to a
+   * copy read back from its blob
+   */
+  void applyRevisions(String store, String branchPath, Manifest manifest) {
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      StoreBranch sb = getStoreBranch(store, branchPath);
+      if (sb != null && sb.revisions != null) {
+        applyRevisions(manifest.getProject(), sb.revisions, 0);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record the canonical manifest of a store branch and subscribe to every
+   * project branch in it.  The manifest itself is not kept.
+   *
+   * @param branch manifest source branch the manifest is read from
+   */
+  void watch(String store, String branch, String branchPath,
+             Manifest manifest, String manifestSrc) {
+    String defaultBranch;
+    if (manifest.getDefault() != null &&
+        manifest.getDefault().getRevision() != null) {
+      defaultBranch = manifest.getDefault().getRevision();
+    } else {
+      defaultBranch = "";
+    }
+
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      IdInterner<ProjectBranchKey> ids = keys;
+      List<Long> watched = Lists.newArrayList();
+      int projectCount = watchProjects(manifest.getProject(), defaultBranch, 0,
+          ids, watched);
+      install(store, branch, branchPath, manifestSrc, projectCount, ids,
+          watched);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Subscribe again as saved by {@link #getWatched}, without the manifest
+   */
+  void restore(String store, String branch, Watched w) {
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      IdInterner<ProjectBranchKey> ids = keys;
+      List<Long> watched = Lists.newArrayListWithCapacity(w.keys.length);
+      for (int i = 0; i < w.keys.length; i++) {
+        watched.add(((long) ids.intern(w.keys[i]) << 32) | w.positions[i]);
+      }
+      install(store, branch, w.branchPath, w.manifestSrc, w.projectCount,
+          ids, watched);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return subscriptions of every branchPath of the manifest source branch
+   * in the store
+   */
+  List<Watched> getWatched(String store, String branch) {
+    List<Watched> watched = Lists.newArrayList();
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      Map<String, StoreBranch> branches = manifestStores.get(store);
+      if (branches == null) {
+        return watched;
+      }
+      for (StoreBranch sb : branches.values()) {
+        if (sb.branch.equals(branch)) {
+          ProjectBranchKey[] pbKeys = new ProjectBranchKey[sb.keys.length];
+          for (int i = 0; i < pbKeys.length; i++) {
+            pbKeys[i] = sb.ids.get(sb.keys[i]);
+          }
+          watched.add(new Watched(sb.branchPath, sb.manifestSrc,
+              sb.projectCount, pbKeys, sb.positions));
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return watched;
+  }
+
+  /**
+   * Must be called holding the store lock
+   *
+   * @param ids     the ids of watched come from
+   * @param watched key id in the high bits, position in the low bits
+   */
+  private void install(String store, String branch, String branchPath,
+                       String manifestSrc, int projectCount,
+                       IdInterner<ProjectBranchKey> ids, List<Long> watched) {
+    StoreBranch sb =
+        new StoreBranch(store, branch, branchPath, manifestSrc, ids);
+    sb.projectCount = projectCount;
+    sortByKey(sb, watched);
+
+    StoreBranch old = storeBranches(store).put(branchPath, sb);
+    if (old != null) {
+      // same slot, only the difference in subscriptions is applied
+      sb.slot = old.slot;
+      setSlot(sb.slot, sb);
+      if (old.ids != ids) {
+        old = withIds(old, ids);
+      }
+      updatePostings(sb.slot, ids, old.keys, sb.keys);
+    } else {
+      sb.slot = allocateSlot(sb);
+      updatePostings(sb.slot, ids, NO_KEYS, sb.keys);
+    }
+    publish(store);
+  }
+
+  /**
+   * Forget every branchPath of a manifest source branch in the store
+   *
+   * @return the branchPaths removed
+   */
+  Set<String> removeBranch(String store, String branch) {
+    Set<String> removed = Sets.newHashSet();
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      Map<String, StoreBranch> branches = manifestStores.get(store);
+      if (branches == null) {
+        return removed;
+      }
+
+      Iterator<Map.Entry<String, StoreBranch>> i =
+          branches.entrySet().iterator();
+      Map.Entry<String, StoreBranch> entry;
+      while (i.hasNext()) {
+        entry = i.next();
+        if (entry.getValue().branch.equals(branch)) {
+          i.remove();
+          unsubscribe(entry.getValue());
+          removed.add(entry.getKey());
+        }
+      }
+      publish(store);
+    } finally {
+      lock.unlock();
+    }
+    compactKeysIfUnused();
+    return removed;
+  }
+
+  /**
+   * Forget a single snapshot manifest of the store
+   *
+   * @return true if it was known
+   */
+  boolean removeBranchPath(String store, String branchPath) {
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      Map<String, StoreBranch> branches = manifestStores.get(store);
+      StoreBranch sb = branches == null ? null : branches.remove(branchPath);
+      if (sb == null) {
+        return false;
+      }
+      unsubscribe(sb);
+      publish(store);
+    } finally {
+      lock.unlock();
+    }
+    compactKeysIfUnused();
+    return true;
+  }
+
+  /**
+   * Forget everything kept for the store
+   *
+   * @return the branchPaths removed
+   */
+  Set<String> removeStore(String store) {
+    Set<String> removed = Sets.newHashSet();
+    Lock lock = storeLocks.get(store);
+    lock.lock();
+    try {
+      Map<String, StoreBranch> branches = manifestStores.remove(store);
+      if (branches != null) {
+        for (Map.Entry<String, StoreBranch> entry : branches.entrySet()) {
+          unsubscribe(entry.getValue());
+          removed.add(entry.getKey());
+        }
+      }
+      publish(store);
+    } finally {
+      lock.unlock();
+    }
+    compactKeysIfUnused();
+    return removed;
+  }
+
+  /**
+   * @return number of project branch ids handed out since the last
+   * compaction, subscribed or not
+   */
+  int getKeyCount() {
+    return keys.size();
+  }
+
+  private void compactKeysIfUnused() {
+    int unused = keys.size() - subscribedRepos.size();
+    if (unused >= MIN_UNUSED_KEYS && unused > subscribedRepos.size()) {
+      compactKeys();
+    }
+  }
+
+  /**
+   * Reclaim the ids of the project branches no longer subscribed: move
+   * every store branch to a fresh interner, one store at a time.  Readers
+   * keep going, each store branch resolves ids with its own interner.
+   */
+  void compactKeys() {
+    synchronized (compactLock) {
+      keys = new IdInterner<>();
+      for (String store : manifestStores.keySet()) {
+        Lock lock = storeLocks.get(store);
+        lock.lock();
+        try {
+          // moved over when published
+          publish(store);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Must be called holding the store lock.  Store branches still using an
+   * older interner move to the current one first, the snapshot of a store
+   * uses a single interner.
+   */
+  private void publish(String store) {
+    IdInterner<ProjectBranchKey> ids = keys;
+    ImmutableMap.Builder<String, int[]> builder = ImmutableMap.builder();
+    Map<String, StoreBranch> branches = manifestStores.get(store);
+    if (branches != null) {
+      for (Map.Entry<String, StoreBranch> entry : branches.entrySet()) {
+        StoreBranch sb = entry.getValue();
+        if (sb.ids != ids) {
+          // same subscriptions, the postings don't change
+          sb = withIds(sb, ids);
+          entry.setValue(sb);
+          setSlot(sb.slot, sb);
+        }
+        builder.put(entry.getKey(), sb.keys);
+      }
+    }
+    ImmutableMap<String, int[]> storeSubscriptions = builder.build();
+
+    SubscriptionSnapshot current;
+    do {
+      current = snapshot.get();
+    } while (!snapshot.compareAndSet(current,
+        current.withStore(store, storeSubscriptions, ids)));
+  }
+
+  /**
+   * Must be called holding the store lock
+   *
+   * @return copy of the store branch with its ids taken from the interner
+   */
+  private static StoreBranch withIds(StoreBranch sb,
+                                     IdInterner<ProjectBranchKey> ids) {
+    StoreBranch moved = new StoreBranch(sb.store, sb.branch, sb.branchPath,
+        sb.manifestSrc, ids);
+    moved.slot = sb.slot;
+    moved.projectCount = sb.projectCount;
+    moved.blob = sb.blob;
+    moved.revisions = sb.revisions;
+    List<Long> watched = Lists.newArrayListWithCapacity(sb.keys.length);
+    for (int i = 0; i < sb.keys.length; i++) {
+      watched.add(((long) ids.intern(sb.ids.get(sb.keys[i])) << 32) |
+          sb.positions[i]);
+    }
+    sortByKey(moved, watched);
+    return moved;
+  }
+
+  private StoreBranch getStoreBranch(String store, String branchPath) {
+    Map<String, StoreBranch> branches = manifestStores.get(store);
+    return branches == null ? null : branches.get(branchPath);
+  }
+
+  private ConcurrentMap<String, StoreBranch> storeBranches(String store) {
+    ConcurrentMap<String, StoreBranch> branches = manifestStores.get(store);
+    if (branches == null) {
+      branches = Maps.newConcurrentMap();
+      ConcurrentMap<String, StoreBranch> existing =
+          manifestStores.putIfAbsent(store, branches);
+      if (existing != null) {
+        branches = existing;
+      }
+    }
+    return branches;
+  }
+
+  /**
+   * @return store branches currently subscribing to the project branch;
+   * a slot reused in the meantime shows up too, callers check the key
+   */
+  private List<StoreBranch> getSubscribers(ProjectBranchKey pbKey) {
+    Postings p = subscribedRepos.get(pbKey);
+    if (p == null) {
+      return Collections.emptyList();
+    }
+    AtomicReferenceArray<StoreBranch> s = slots;
+    List<StoreBranch> subscribers = Lists.newArrayListWithCapacity(p.size);
+    StoreBranch sb;
+    for (int i = 0; i < p.size; i++) {
+      sb = s.get(p.slots[i]);
+      if (sb != null) {
+        subscribers.add(sb);
+      }
+    }
+    return subscribers;
+  }
+
+  /**
+   * @param position of the first project in a depth first walk of the
+   *                 manifest
+   * @param watched  key id in the high bits, position in the low bits
+   * @return position after the last project
+   */
+  private int watchProjects(List<Project> projects, String defaultBranch,
+                            int position, IdInterner<ProjectBranchKey> ids,
+                            List<Long> watched) {
+    for (Project project : projects) {
+      if (isStore(project.getName())) {
+        // Skip if it's one of the repo for storing
+        // manifest to avoid infinite loop
+        // This is a bit too general, but it's done to avoid the complexity
+        // of actually tracing out the loop
+        // i.e. manifest1->store2 --> manifest2->store1
+        position += countProjects(project.getProject()) + 1;
+        continue;
+      }
+
+      String branch = project.getRevision() == null ?
+          defaultBranch : project.getRevision();
+      int key = ids.intern(new ProjectBranchKey(project.getName(),
+          Repository.shortenRefName(branch)));
+      watched.add(((long) key << 32) | position++);
+
+      if (project.getProject().size() > 0) {
+        position = watchProjects(project.getProject(), defaultBranch,
+            position, ids, watched);
+      }
+    }
+    return position;
+  }
+
+  private static int countProjects(List<Project> projects) {
+    int count = projects.size();
+    for (Project project : projects) {
+      count += countProjects(project.getProject());
+    }
+    return count;
+  }
+
+  /**
+   * Must walk in the same order as {@link #watchProjects}
+   */
+  private static int applyRevisions(List<Project> projects,
+                                    String[] revisions, int position) {
+    for (Project project : projects) {
+      if (position < revisions.length && revisions[position] != null) {
+        project.setRevision(revisions[position]);
+      }
+      position++;
+      if (project.getProject().size() > 0) {
+        position = applyRevisions(project.getProject(), revisions, position);
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Fill the key and position arrays of the store branch, ordered by key id
+   */
+  private static void sortByKey(StoreBranch sb, List<Long> watched) {
+    long[] sorted = Longs.toArray(watched);
+    Arrays.sort(sorted);
+
+    sb.keys = new int[sorted.length];
+    sb.positions = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      sb.keys[i] = (int) (sorted[i] >>> 32);
+      sb.positions[i] = (int) sorted[i];
+    }
+  }
+
+  private void unsubscribe(StoreBranch sb) {
+    updatePostings(sb.slot, sb.ids, sb.keys, NO_KEYS);
+    freeSlot(sb.slot);
+  }
+
+  /**
+   * Move the slot from the postings of the old keys to those of the new
+   * ones, both sorted and taken from the interner
+   */
+  private void updatePostings(int slot, IdInterner<ProjectBranchKey> ids,
+                              int[] oldKeys, int[] newKeys) {
+    int i = 0;
+    int j = 0;
+    while (i < oldKeys.length || j < newKeys.length) {
+      if (j == newKeys.length ||
+          (i < oldKeys.length && oldKeys[i] < newKeys[j])) {
+        removePosting(ids.get(oldKeys[i]), slot);
+        i = skip(oldKeys, i);
+      } else if (i == oldKeys.length || newKeys[j] < oldKeys[i]) {
+        addPosting(ids.get(newKeys[j]), slot);
+        j = skip(newKeys, j);
+      } else {
+        i = skip(oldKeys, i);
+        j = skip(newKeys, j);
+      }
+    }
+  }
+
+  private static int skip(int[] keys, int i) {
+    int key = keys[i];
+    while (i < keys.length && keys[i] == key) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Rows are shared by all stores; creating and dropping them is guarded by
+   * a lock striped on the project branch
+   */
+  private void addPosting(ProjectBranchKey pbKey, int slot) {
+    Lock lock = keyLocks.get(pbKey);
+    lock.lock();
+    try {
+      Postings p = subscribedRepos.get(pbKey);
+      subscribedRepos.put(pbKey, p == null ?
+          new Postings(new int[] {slot}, 1) : p.add(slot));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void removePosting(ProjectBranchKey pbKey, int slot) {
+    Lock lock = keyLocks.get(pbKey);
+    lock.lock();
+    try {
+      Postings p = subscribedRepos.get(pbKey);
+      if (p == null) {
+        return;
+      }
+      p = p.remove(slot);
+      if (p == null) {
+        subscribedRepos.remove(pbKey);
+      } else {
+        subscribedRepos.put(pbKey, p);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int allocateSlot(StoreBranch sb) {
+    synchronized (slotLock) {
+      Integer slot = freeSlots.poll();
+      if (slot == null) {
+        slot = nextSlot++;
+        AtomicReferenceArray<StoreBranch> s = slots;
+        if (slot == s.length()) {
+          AtomicReferenceArray<StoreBranch> grown =
+              new AtomicReferenceArray<>(s.length() * 2);
+          for (int i = 0; i < s.length(); i++) {
+            grown.set(i, s.get(i));
+          }
+          slots = grown;
+        }
+      }
+      slots.set(slot, sb);
+      return slot;
+    }
+  }
+
+  private void setSlot(int slot, StoreBranch sb) {
+    synchronized (slotLock) {
+      slots.set(slot, sb);
+    }
+  }
+
+  private void freeSlot(int slot) {
+    synchronized (slotLock) {
+      slots.set(slot, null);
+      freeSlots.push(slot);
+    }
+  }
+}
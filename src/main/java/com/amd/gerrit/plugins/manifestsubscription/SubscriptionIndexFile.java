@@ -0,0 +1,221 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscriptions saved in the plugin data directory, so a restart only has
+ * to process the manifest source branches that moved in the meantime.
+ *
+ * Big endian, strings as length and UTF-8 bytes, object ids raw:
+ * <pre>
+ * magic, version
+ * key count, (project, branch)...
+ * source branch count, then per source branch:
+ *   project, branch, store, source commit, manifest path pattern,
+ *   branchPath count,
+ *   (branchPath, manifest source, project count,
+ *    subscription count, (key, position)...)...
+ * </pre>
+ * The file is memory-mapped when read.
+ */
+class SubscriptionIndexFile {
+  static final String FILE_NAME = "subscriptions.idx";
+
+  private static final int MAGIC = 0x4d534958;
+  private static final int VERSION = 2;
+
+  /**
+   * Everything watched for a manifest source branch, as of a source commit
+   */
+  static class SourceBranch {
+    final String project;
+    final String branch;
+    final String store;
+    final ObjectId commit;
+
+    /**
+     * pattern the manifests were matched with, the one of the source or of
+     * gerrit.config
+     */
+    final String manifestPathPattern;
+    final List<SubscriptionIndex.Watched> branchPaths;
+
+    SourceBranch(String project, String branch, String store,
+                 ObjectId commit, String manifestPathPattern,
+                 List<SubscriptionIndex.Watched> branchPaths) {
+      this.project = project;
+      this.branch = branch;
+      this.store = store;
+      this.commit = commit;
+      this.manifestPathPattern = manifestPathPattern;
+      this.branchPaths = branchPaths;
+    }
+  }
+
+  static String key(String project, String branch) {
+    return project + "\n" + branch;
+  }
+
+  /**
+   * Replace the file, the old one stays in place until the new one is
+   * complete
+   */
+  static void write(Path file, Collection<SourceBranch> branches)
+      throws IOException {
+    Map<ProjectBranchKey, Integer> ids = Maps.newHashMap();
+    List<ProjectBranchKey> keys = Lists.newArrayList();
+    for (SourceBranch sb : branches) {
+      for (SubscriptionIndex.Watched w : sb.branchPaths) {
+        for (ProjectBranchKey pbKey : w.keys) {
+          if (!ids.containsKey(pbKey)) {
+            ids.put(pbKey, keys.size());
+            keys.add(pbKey);
+          }
+        }
+      }
+    }
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      out.writeInt(keys.size());
+      for (ProjectBranchKey pbKey : keys) {
+        writeString(out, pbKey.getProject());
+        writeString(out, pbKey.getBranch());
+      }
+
+      out.writeInt(branches.size());
+      for (SourceBranch sb : branches) {
+        writeString(out, sb.project);
+        writeString(out, sb.branch);
+        writeString(out, sb.store);
+        sb.commit.copyRawTo(out);
+        writeString(out, sb.manifestPathPattern);
+        out.writeInt(sb.branchPaths.size());
+        for (SubscriptionIndex.Watched w : sb.branchPaths) {
+          writeString(out, w.branchPath);
+          writeString(out, w.manifestSrc);
+          out.writeInt(w.projectCount);
+          out.writeInt(w.keys.length);
+          for (int i = 0; i < w.keys.length; i++) {
+            out.writeInt(ids.get(w.keys[i]));
+            out.writeInt(w.positions[i]);
+          }
+        }
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return source branches by {@link #key}, empty if there is no file or
+   * it was written by another version
+   */
+  static Map<String, SourceBranch> read(Path file) throws IOException {
+    if (!Files.isRegularFile(file)) {
+      return Collections.emptyMap();
+    }
+
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      if (in.remaining() < 8 ||
+          in.getInt() != MAGIC || in.getInt() != VERSION) {
+        return Collections.emptyMap();
+      }
+
+      ProjectBranchKey[] keys = new ProjectBranchKey[in.getInt()];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = new ProjectBranchKey(readString(in), readString(in));
+      }
+
+      int count = in.getInt();
+      Map<String, SourceBranch> branches =
+          Maps.newHashMapWithExpectedSize(count);
+      byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int b = 0; b < count; b++) {
+        String project = readString(in);
+        String branch = readString(in);
+        String store = readString(in);
+        in.get(raw);
+        ObjectId commit = ObjectId.fromRaw(raw);
+        String manifestPathPattern = readString(in);
+
+        List<SubscriptionIndex.Watched> branchPaths =
+            Lists.newArrayList();
+        int paths = in.getInt();
+        for (int p = 0; p < paths; p++) {
+          String branchPath = readString(in);
+          String manifestSrc = readString(in);
+          int projectCount = in.getInt();
+          ProjectBranchKey[] pbKeys = new ProjectBranchKey[in.getInt()];
+          int[] positions = new int[pbKeys.length];
+          for (int i = 0; i < pbKeys.length; i++) {
+            pbKeys[i] = keys[in.getInt()];
+            positions[i] = in.getInt();
+          }
+          branchPaths.add(new SubscriptionIndex.Watched(branchPath,
+              manifestSrc, projectCount, pbKeys, positions));
+        }
+        branches.put(key(project, branch),
+            new SourceBranch(project, branch, store, commit,
+                manifestPathPattern, branchPaths));
+      }
+      return branches;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException
+        | IllegalArgumentException | NegativeArraySizeException e) {
+      throw new IOException("Corrupt subscription index " + file, e);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] b = new byte[in.getInt()];
+    in.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterators;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable view of the subscriptions published by {@link SubscriptionIndex}
+ * after every change.
+ *
+ * A new snapshot only replaces the subscriptions of the store that changed,
+ * those of the other stores are shared with the previous generation.
+ * Subscriptions are kept as the index's interned key ids; the reverse lookup
+ * used by readers is built per store on first use, so after a change only
+ * the store that changed builds it again.  Lookups go through the stores one
+ * after another.
+ */
+public class SubscriptionSnapshot {
+  static final SubscriptionSnapshot EMPTY = new SubscriptionSnapshot(0,
+      ImmutableMap.<String, Store>of());
+
+  /**
+   * Subscriptions of one store, shared by every generation until the store
+   * changes
+   */
+  private static class Store {
+    /**
+     * branchPath, ids of the subscribed project branches
+     */
+    private final ImmutableMap<String, int[]> branches;
+    private final IdInterner<ProjectBranchKey> keys;
+
+    /**
+     * subscribed project branch, branchPath
+     */
+    private final Supplier<ImmutableSetMultimap<ProjectBranchKey, String>>
+        subscriptions = Suppliers.memoize(
+        new Supplier<ImmutableSetMultimap<ProjectBranchKey, String>>() {
+          @Override
+          public ImmutableSetMultimap<ProjectBranchKey, String> get() {
+            ImmutableSetMultimap.Builder<ProjectBranchKey, String> builder =
+                ImmutableSetMultimap.builder();
+            for (Map.Entry<String, int[]> entry : branches.entrySet()) {
+              for (int key : entry.getValue()) {
+                builder.put(keys.get(key), entry.getKey());
+              }
+            }
+            return builder.build();
+          }
+        });
+
+    Store(ImmutableMap<String, int[]> branches,
+          IdInterner<ProjectBranchKey> keys) {
+      this.branches = branches;
+      this.keys = keys;
+    }
+  }
+
+  private final long generation;
+
+  private final ImmutableMap<String, Store> stores;
+
+  /**
+   * subscribed project branches of every store, each listed once
+   */
+  private final Set<ProjectBranchKey> subscribedProjects =
+      new AbstractSet<ProjectBranchKey>() {
+        @Override
+        public boolean contains(Object o) {
+          for (Store store : stores.values()) {
+            if (store.subscriptions.get().containsKey(o)) {
+              return true;
+            }
+          }
+          return false;
+        }
+
+        @Override
+        public Iterator<ProjectBranchKey> iterator() {
+          final ImmutableList<Store> all = stores.values().asList();
+          return new AbstractIterator<ProjectBranchKey>() {
+            private int store = -1;
+            private Iterator<ProjectBranchKey> keys =
+                ImmutableSet.<ProjectBranchKey>of().iterator();
+
+            @Override
+            protected ProjectBranchKey computeNext() {
+              while (true) {
+                while (!keys.hasNext()) {
+                  if (++store == all.size()) {
+                    return endOfData();
+                  }
+                  keys = all.get(store).subscriptions.get().keySet()
+                      .iterator();
+                }
+                ProjectBranchKey key = keys.next();
+                if (!listedBefore(key)) {
+                  return key;
+                }
+              }
+            }
+
+            private boolean listedBefore(ProjectBranchKey key) {
+              for (int i = 0; i < store; i++) {
+                if (all.get(i).subscriptions.get().containsKey(key)) {
+                  return true;
+                }
+              }
+              return false;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return Iterators.size(iterator());
+        }
+      };
+
+  private SubscriptionSnapshot(long generation,
+                               ImmutableMap<String, Store> stores) {
+    this.generation = generation;
+    this.stores = stores;
+  }
+
+  /**
+   * @return number increasing with every change of the subscriptions
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @return project branches subscribed in any store, a view of this
+   * snapshot that never changes
+   */
+  public Set<ProjectBranchKey> getSubscribedProjects() {
+    return subscribedProjects;
+  }
+
+  /**
+   * @return branchPaths of the snapshot manifests following the project
+   * branch
+   */
+  public ImmutableSet<String> getBranchPaths(ProjectBranchKey pbKey) {
+    ImmutableSet<String> found = ImmutableSet.of();
+    ImmutableSet.Builder<String> builder = null;
+    for (Store store : stores.values()) {
+      ImmutableSet<String> branchPaths = store.subscriptions.get().get(pbKey);
+      if (branchPaths.isEmpty()) {
+        continue;
+      }
+      if (found.isEmpty()) {
+        found = branchPaths;
+      } else {
+        if (builder == null) {
+          builder = ImmutableSet.<String>builder().addAll(found);
+        }
+        builder.addAll(branchPaths);
+      }
+    }
+    return builder == null ? found : builder.build();
+  }
+
+  public ImmutableSet<String> getStores() {
+    return stores.keySet();
+  }
+
+  /**
+   * @param branches branchPath, key ids never modified after this call
+   * @return a new generation with the subscriptions of the store replaced
+   */
+  SubscriptionSnapshot withStore(String store,
+                                 ImmutableMap<String, int[]> branches,
+                                 IdInterner<ProjectBranchKey> keys) {
+    ImmutableMap.Builder<String, Store> builder = ImmutableMap.builder();
+    for (Map.Entry<String, Store> entry : stores.entrySet()) {
+      if (!entry.getKey().equals(store)) {
+        builder.put(entry);
+      }
+    }
+    if (!branches.isEmpty()) {
+      builder.put(store, new Store(branches, keys));
+    }
+    return new SubscriptionSnapshot(generation + 1, builder.build());
+  }
+}
@@ -17,9 +17,8 @@ package com.amd.gerrit.plugins.manifestsubscription;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Default;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
 import com.google.common.base.Throwables;
-import com.google.common.collect.ImmutableCollection;
-import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
@@ -29,11 +28,14 @@ import com.google.gerrit.server.git.TagCache;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.inject.OutOfScopeException;
 import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
@@ -91,8 +93,48 @@ public class Utilities {
                              String defaultBranchBase)
           throws JAXBException, IOException, GitAPIException {
     Project.NameKey p = new Project.NameKey(projectName);
-    Repository repo = gitRepoManager.openRepository(p);
-    MetaDataUpdate update = metaDataUpdateFactory.create(p);
+    try (MetaDataUpdate update = metaDataUpdateFactory.create(p)) {
+      return updateManifest(update, tagCache, gitRefUpdated, identifiedUser,
+          refName, manifest, manifestSrc, extraCommitMsg, defaultBranchBase);
+    }
+  }
+
+  /**
+   * @param repo the store repository, already open, left open
+   * @param serverIdent author and committer of the snapshot commit
+   */
+  static ObjectId updateManifest(Repository repo, PersonIdent serverIdent,
+                             TagCache tagCache,
+                             GitReferenceUpdated gitRefUpdated,
+                             Provider<IdentifiedUser> identifiedUser,
+                             String projectName, String refName,
+                             Manifest manifest, String manifestSrc,
+                             String extraCommitMsg,
+                             String defaultBranchBase)
+          throws JAXBException, IOException, GitAPIException {
+    // closing the update closes the repository once, the caller's stays open
+    repo.incrementOpen();
+    try (MetaDataUpdate update = new MetaDataUpdate(gitRefUpdated,
+        new Project.NameKey(projectName), repo)) {
+      update.getCommitBuilder().setAuthor(serverIdent);
+      update.getCommitBuilder().setCommitter(serverIdent);
+      return updateManifest(update, tagCache, gitRefUpdated, identifiedUser,
+          refName, manifest, manifestSrc, extraCommitMsg, defaultBranchBase);
+    }
+  }
+
+  private static ObjectId updateManifest(MetaDataUpdate update,
+                             TagCache tagCache,
+                             GitReferenceUpdated gitRefUpdated,
+                             Provider<IdentifiedUser> identifiedUser,
+                             String refName,
+                             Manifest manifest, String manifestSrc,
+                             String extraCommitMsg,
+                             String defaultBranchBase)
+          throws JAXBException, IOException, GitAPIException {
+    Repository repo = update.getRepository();
+    Project.NameKey p = update.getProjectName();
+    String projectName = p.get();
     ObjectId commitId = repo.resolve(refName);
     VersionedManifests vManifests = new VersionedManifests(refName);
 
@@ -107,11 +149,16 @@ public class Utilities {
     RevCommit commit = null;
     if (refExists) {
       Map<String, Manifest> entry = Maps.newHashMapWithExpectedSize(1);
-      entry.put("default.xml", manifest);
+      entry.put(ManifestSubscription.SNAPSHOT_PATH, manifest);
       vManifests.setManifests(entry);
       vManifests.setSrcManifestRepo(manifestSrc);
       vManifests.setExtraCommitMsg(extraCommitMsg);
       commit = vManifests.commit(update);
+      if (commit != null && commit.toObjectId().equals(commitId)) {
+        // same manifest, nothing committed, tagged or announced
+        SnapshotMetrics.unchanged();
+        return commitId;
+      }
     } else {
       if (defaultBranchBase == null) defaultBranchBase = "refs/heads/master";
       vManifests = new VersionedManifests(defaultBranchBase);
@@ -122,14 +169,15 @@ public class Utilities {
         e.printStackTrace();
       }
       Map<String, Manifest> entry = Maps.newHashMapWithExpectedSize(1);
-      entry.put("default.xml", manifest);
+      entry.put(ManifestSubscription.SNAPSHOT_PATH, manifest);
       vManifests.setManifests(entry);
       commit = vManifests.commitToNewRef(update, refName);
     }
 
     if (commit != null) {
+      SnapshotMetrics.committed();
       if (!commit.toObjectId().equals(commitId) &&
-              commit.getShortMessage().length() == 40) {
+              isTaggedSnapshot(commit)) {
         Git git = new Git(repo);
         String tagName = "snapshot/" + commit.getName();
         Ref result = git.tag().setObjectId(commit)
@@ -143,7 +191,7 @@ public class Utilities {
                 "refs/tags/" + tagName,
                 ObjectId.zeroId(),
                 result.getObjectId(),
-                identifiedUser.get().getAccount());
+                currentAccount(identifiedUser));
       }
       return commit.getId();
     } else {
@@ -155,6 +203,26 @@ public class Utilities {
     return null;
   }
 
+  /**
+   * @return true if the snapshot commit names the commit that triggered it
+   * on its first line, such snapshots are tagged
+   */
+  static boolean isTaggedSnapshot(RevCommit commit) {
+    return commit.getShortMessage().length() == 40;
+  }
+
+  /**
+   * Snapshot updates now run on the plugin's own event threads where there
+   * is no request scope, fall back to attributing the ref update to nobody
+   */
+  static Account currentAccount(Provider<IdentifiedUser> identifiedUser) {
+    try {
+      return identifiedUser.get().getAccount();
+    } catch (ProvisionException | OutOfScopeException e) {
+      return null;
+    }
+  }
+
   public enum OutputType {
     TEXT,
     JSON
@@ -167,13 +235,16 @@ public class Utilities {
                                                                  JAXBException {
 
     Project.NameKey p = new Project.NameKey(manifestRepo);
-    Repository repo = gitRepoManager.openRepository(p);
-    ObjectId commitId = repo.resolve(manifestCommitish);
-    VersionedManifests vManifests = new VersionedManifests(manifestCommitish);
-    vManifests.load(repo, commitId);
-    CanonicalManifest manifests = new CanonicalManifest(vManifests);
+    // manifests are read from the repository until the canonical one is built
+    try (Repository repo = gitRepoManager.openRepository(p)) {
+      ObjectId commitId = repo.resolve(manifestCommitish);
+      VersionedManifests vManifests =
+          new VersionedManifests(manifestCommitish);
+      vManifests.load(repo, commitId);
+      CanonicalManifest manifests = new CanonicalManifest(vManifests);
 
-    return manifests.getCanonicalManifest(manifestPath);
+      return manifests.getCanonicalManifest(manifestPath);
+    }
   }
 
   static Manifest createNewManifestFromBase(
@@ -190,7 +261,8 @@ public class Utilities {
       throws JAXBException, IOException, ConfigInvalidException, GitAPIException {
 
     // Replace default ref with newly created branch or tag
-    Manifest manifest = (Manifest) base.clone();
+    Manifest manifest = ManifestCopy.copyProjects(base);
+    manifest.setDefault(ManifestCopy.copy(base.getDefault()));
     final String defaultRef;
     if (manifest.getDefault() != null) {
       defaultRef = manifest.getDefault().getRevision();
@@ -249,29 +321,31 @@ public class Utilities {
     }
 
     Project.NameKey p = new Project.NameKey(manifestRepo);
-    Repository repo = gitRepoManager.openRepository(p);
-    ObjectId commitId = repo.resolve(manifestBranch);
-    VersionedManifests vManifests;
-    MetaDataUpdate update = metaDataUpdateFactory.create(p);
-    if (commitId == null) {
-      // TODO remove assumption that master branch always exists
-      vManifests = new VersionedManifests("refs/heads/master");
-      vManifests.load(update);
-    } else {
-      vManifests = new VersionedManifests(manifestBranch);
-      vManifests.load(repo, commitId);
-    }
+    // closing the update closes its repository
+    try (MetaDataUpdate update = metaDataUpdateFactory.create(p)) {
+      Repository repo = update.getRepository();
+      ObjectId commitId = repo.resolve(manifestBranch);
+      VersionedManifests vManifests;
+      if (commitId == null) {
+        // TODO remove assumption that master branch always exists
+        vManifests = new VersionedManifests("refs/heads/master");
+        vManifests.load(update);
+      } else {
+        vManifests = new VersionedManifests(manifestBranch);
+        vManifests.load(repo, commitId);
+      }
 
 
-    Map<String, Manifest> entry = Maps.newHashMapWithExpectedSize(1);
-    entry.put(manifestPath, manifest);
-    vManifests.setManifests(entry);
+      Map<String, Manifest> entry = Maps.newHashMapWithExpectedSize(1);
+      entry.put(manifestPath, manifest);
+      vManifests.setManifests(entry);
 
-    RevCommit commit;
-    if (commitId == null) {
-      commit = vManifests.commitToNewRef(update, manifestBranch);
-    } else {
-      commit = vManifests.commit(update);
+      RevCommit commit;
+      if (commitId == null) {
+        commit = vManifests.commitToNewRef(update, manifestBranch);
+      } else {
+        commit = vManifests.commit(update);
+      }
     }
 
     //TODO
@@ -384,20 +458,34 @@ public class Utilities {
 
   static void showSubscription(ManifestSubscription manifestSubscription,
                                Writer output, boolean inJSON) {
+    showSubscription(manifestSubscription.getEnabledManifestSource(),
+        manifestSubscription.getSubscriptions(),
+        manifestSubscription.isReady(),
+        manifestSubscription.getPendingEvents(), output, inJSON);
+  }
 
-    Set<String> repos = manifestSubscription.getEnabledManifestSource();
-    Set<ProjectBranchKey> projects = manifestSubscription.getSubscribedProjects();
-
-    ImmutableTable<ProjectBranchKey, String, Map<String, Set<
-          com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>> subscriptions =
-        manifestSubscription.getSubscribedRepos();
+  /**
+   * Show state read beforehand, all of it from the same moment
+   *
+   * @param pendingEvents null to leave it out
+   */
+  static void showSubscription(Set<String> repos,
+                               SubscriptionSnapshot subscriptions,
+                               boolean ready, Integer pendingEvents,
+                               Writer output, boolean inJSON) {
+    Set<ProjectBranchKey> projects = subscriptions.getSubscribedProjects();
 
     if (inJSON) {
 
-      Map<String, Set> result = Maps.newHashMap();
+      Map<String, Object> result = Maps.newHashMap();
 
       result.put("manifest_subscriptions", repos);
       result.put("monitored_projects", projects);
+      result.put("ready", ready);
+      if (pendingEvents != null) {
+        result.put("pending_events", pendingEvents);
+      }
+      result.put("generation", subscriptions.getGeneration());
 
       gson.toJson(result, output);
 
@@ -409,6 +497,11 @@ public class Utilities {
         writer = new PrintWriter(output);
       }
 
+      writer.println("Ready: " + ready);
+      if (pendingEvents != null) {
+        writer.println("Pending events: " + pendingEvents);
+      }
+      writer.println("");
       writer.println("Enabled manifest repositories:");
 
       for (String repo : repos) {
@@ -418,19 +511,11 @@ public class Utilities {
       writer.println("");
       writer.println("Monitoring projects:");
 
-      for (ProjectBranchKey pbKey : subscriptions.rowKeySet()) {
+      for (ProjectBranchKey pbKey : projects) {
         writer.println(pbKey.getProject() + " | " + pbKey.getBranch());
-        ImmutableCollection<Map<String, Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>>> m =
-            subscriptions.row(pbKey).values();
-
-        for (Map<String,
-            Set<com.amd.gerrit.plugins.manifestsubscription.manifest.Project>> i : m) {
-          for (String s : i.keySet()) {
-            writer.println("  - " + s);
-          }
+        for (String s : subscriptions.getBranchPaths(pbKey)) {
+          writer.println("  - " + s);
         }
-
-
       }
 
     }
@@ -456,7 +541,8 @@ public class Utilities {
     }
 
     ProjectBranchKey pbKey = new ProjectBranchKey(projectName, projectBranch);
-    if (!manifestSubscription.getSubscribedProjects().contains(pbKey)) {
+    if (!manifestSubscription.getSubscriptions()
+        .getSubscribedProjects().contains(pbKey)) {
       writer.println(
               String.format("Project '%s' with branch '%s' is not being monitored for manifest update",
               projectName, projectBranch));
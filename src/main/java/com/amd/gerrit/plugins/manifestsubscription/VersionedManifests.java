@@ -17,13 +17,17 @@ package com.amd.gerrit.plugins.manifestsubscription;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.MetaDataUpdate;
 import com.google.gerrit.server.git.VersionedMetaData;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -34,21 +38,54 @@ import org.slf4j.LoggerFactory;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class VersionedManifests extends VersionedMetaData implements ManifestProvider {
   private static final Logger log =
       LoggerFactory.getLogger(VersionedManifests.class);
 
+  /**
+   * Building the context is the most expensive part of JAXB and it is
+   * thread safe, so there is only one.  Unmarshallers are not thread safe,
+   * a few are pooled for reuse instead of kept on Gerrit's threads, where
+   * they would hold on to the plugin after it is unloaded.
+   */
+  private static volatile JAXBContext jaxbContext;
+  private static final int POOL_SIZE = 4;
+  private static final BlockingQueue<Unmarshaller> unmarshallers =
+      new ArrayBlockingQueue<>(POOL_SIZE);
+
+  /**
+   * Manifests being saved are written into a buffer and inserted from it,
+   * buffers up to {@link #MAX_POOLED_BUFFER} are pooled for the next save
+   */
+  private static final int MAX_POOLED_BUFFER = 1024 * 1024;
+  private static final BlockingQueue<SaveBuffer> saveBuffers =
+      new ArrayBlockingQueue<>(POOL_SIZE);
+
   private String refName;
-  private Unmarshaller manifestUnmarshaller;
-  private Marshaller manifestMarshaller;
-  private Map<String, Manifest> manifests;
+
+  /**
+   * manifests parsed so far, or set to be saved
+   */
+  private Map<String, Manifest> manifests = Maps.newHashMap();
+
+  /**
+   * path to blob id of every manifest of the loaded tree, parsed on first
+   * read from the repository it was loaded from
+   */
+  private Map<String, ObjectId> blobs = Collections.emptyMap();
+  private Repository db;
+  private boolean creatingRef;
+  private String manifestPathPattern;
   private String srcManifestRepo = "";
   private String extraCommitMsg = "";
 
@@ -60,6 +97,18 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
     this.extraCommitMsg = extraCommitMsg;
   }
 
+  public String getManifestPathPattern() {
+    return manifestPathPattern;
+  }
+
+  /**
+   * @param manifestPathPattern paths of the manifests to load, null for the
+   *                            configured pattern
+   */
+  public void setManifestPathPattern(String manifestPathPattern) {
+    this.manifestPathPattern = manifestPathPattern;
+  }
+
   public String getSrcManifestRepo() {
     return srcManifestRepo;
   }
@@ -68,23 +117,98 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
     this.srcManifestRepo = srcManifestRepo;
   }
 
+  /**
+   * @return every manifest, parsing the ones not read yet; manifests that
+   * cannot be parsed are left out.  Loaded manifests are shared through
+   * {@link ManifestCache}, not to be modified.
+   */
   public Map<String, Manifest> getManifests() {
+    for (String path : blobs.keySet()) {
+      if (!manifests.containsKey(path)) {
+        try {
+          readManifest(path);
+        } catch (ManifestReadException e) {
+          log.error(e.getMessage(), e);
+        }
+      }
+    }
     return Collections.unmodifiableMap(manifests);
   }
 
+  /**
+   * Replace the manifests of the branch by these on save, nothing loaded
+   * before is read anymore
+   */
   public void setManifests(Map<String, Manifest> manifests) {
     this.manifests = manifests;
+    this.blobs = Collections.emptyMap();
   }
 
   public Set<String> getManifestPaths() {
-    return manifests.keySet();
+    return Sets.union(blobs.keySet(), manifests.keySet());
   }
 
   private VersionedManifests() throws JAXBException {
-    JAXBContext jaxbctx = JAXBContext.newInstance(Manifest.class);
-    this.manifestUnmarshaller = jaxbctx.createUnmarshaller();
-    this.manifestMarshaller = jaxbctx.createMarshaller();
-    this.manifestMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+    // fail here as before if the model can't be bound
+    getJaxbContext();
+  }
+
+  static JAXBContext getJaxbContext() throws JAXBException {
+    JAXBContext ctx = jaxbContext;
+    if (ctx == null) {
+      synchronized (VersionedManifests.class) {
+        ctx = jaxbContext;
+        if (ctx == null) {
+          ctx = JAXBContext.newInstance(Manifest.class);
+          jaxbContext = ctx;
+        }
+      }
+    }
+    return ctx;
+  }
+
+  /**
+   * Drop the pooled unmarshallers and buffers, when the plugin stops
+   */
+  static void clearPools() {
+    unmarshallers.clear();
+    saveBuffers.clear();
+  }
+
+  static class SaveBuffer extends ByteArrayOutputStream {
+    private SaveBuffer() {
+      super(64 * 1024);
+    }
+
+    /**
+     * @return an empty buffer, give it back with {@link #release}
+     */
+    static SaveBuffer acquire() {
+      SaveBuffer buffer = saveBuffers.poll();
+      if (buffer == null) {
+        return new SaveBuffer();
+      }
+      buffer.reset();
+      return buffer;
+    }
+
+    /**
+     * Pool the buffer unless the pool is full or it grew too large
+     */
+    void release() {
+      if (buf.length <= MAX_POOLED_BUFFER) {
+        saveBuffers.offer(this);
+      }
+    }
+
+    ObjectId idFor(ObjectInserter inserter) {
+      return inserter.idFor(Constants.OBJ_BLOB, buf, 0, count);
+    }
+
+    ObjectId insert(ObjectInserter inserter) throws IOException {
+      // straight from the buffer, no copy of the content
+      return inserter.insert(Constants.OBJ_BLOB, buf, 0, count);
+    }
   }
 
   public VersionedManifests(String refName)
@@ -106,12 +230,40 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
     return refName;
   }
 
+  /**
+   * Every other load ends up here.  The repository is kept to read the
+   * manifests later, it must stay open as long as they are read.
+   */
+  @Override
+  public void load(Repository db, ObjectId id)
+      throws IOException, ConfigInvalidException {
+    this.db = db;
+    super.load(db, id);
+  }
+
+  /**
+   * The new branch is created even if its manifests are the same as the
+   * ones it starts from, with a commit of the same tree on top of them
+   */
+  @Override
+  public RevCommit commitToNewRef(MetaDataUpdate update, String refName)
+      throws IOException {
+    creatingRef = true;
+    // an unchanged tree is otherwise not committed and the ref not created
+    boolean allowEmpty = update.allowEmpty();
+    update.setAllowEmpty(true);
+    try {
+      return super.commitToNewRef(update, refName);
+    } finally {
+      creatingRef = false;
+      update.setAllowEmpty(allowEmpty);
+    }
+  }
+
   @Override
   protected void onLoad() throws IOException, ConfigInvalidException {
     manifests = Maps.newHashMap();
-
-    String path;
-    Manifest manifest;
+    blobs = Maps.newHashMap();
 
     try (RevWalk rw = new RevWalk(reader);
          TreeWalk treewalk = new TreeWalk(reader)) {
@@ -121,64 +273,29 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
       }
       RevCommit r = rw.parseCommit(getRevision());
       treewalk.addTree(r.getTree());
-      treewalk.setRecursive(false);
-      String manifestPathPattern = ManifestSubscriptionConfig.
-              getManifestPathPattern() != null ?
-              ManifestSubscriptionConfig.getManifestPathPattern() :
-              ManifestSubscriptionConfig.DEFAULT_MANIFEST_PATH_PATTERN;
+      treewalk.setRecursive(true);
+      treewalk.setFilter(ManifestPathFilter.get(manifestPathPattern));
       while (treewalk.next()) {
-        if (treewalk.isSubtree()) {
-          treewalk.enterSubtree();
-        } else {
-          path = treewalk.getPathString();
-          if (path.matches(manifestPathPattern)) {
-            //TODO: Should this be done more lazily?
-            //TODO: difficult to do when reader is not available outside of onLoad?
-            try (ByteArrayInputStream input
-                         = new ByteArrayInputStream(readFile(path))) {
-              manifest = (Manifest) manifestUnmarshaller.unmarshal(input);
-              manifests.put(path, manifest);
-            } catch (JAXBException e) {
-              e.printStackTrace();
-            }
-          }
-        }
+        // parsed in readManifest, if ever asked for
+        blobs.put(treewalk.getPathString(), treewalk.getObjectId(0));
       }
     }
-
-    //TODO load changed manifest
-//    DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE);
   }
 
   @Override
   protected boolean onSave(CommitBuilder commit) throws IOException {
-    // extra commit message (such as the one-liner git log) is put in
-    // the body because:
-    // 1) not all manifest update has a one-line git log (such as
-    //    the manifest generated from the initial subscription)
-    // 2) An manifest update may contain multiple project, which means
-    //    multiple one-line git log
-    StringBuilder commitMsg = new StringBuilder();
-    if (extraCommitMsg != null && extraCommitMsg.length() > 0) {
-      String sha1 = extraCommitMsg.split("\n")[1];
-      commitMsg.append(sha1 + "\n\n");
-      commitMsg.append(extraCommitMsg);
-    } else {
-      commitMsg.append("Snapshot manifest from " +
-              srcManifestRepo + " updated");
-    }
-
     String path;
     Manifest manifest;
+    boolean changed = false;
     for (Map.Entry<String, Manifest> entry : manifests.entrySet()) {
       path = entry.getKey();
       manifest = entry.getValue();
 
-      try {
-        saveManifest(path, manifest);
-      } catch (JAXBException e) {
-        throw new IOException(e);
-      }
+      changed |= saveManifest(path, manifest);
+    }
+    if (!changed && !creatingRef) {
+      // same content as the current commit, don't commit at all
+      return false;
     }
 
     // For some reason the default author and committer date is
@@ -188,34 +305,158 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
     commit.setCommitter(new PersonIdent(commit.getCommitter(), date));
 
     if (commit.getMessage() == null || "".equals(commit.getMessage())) {
-      commit.setMessage(commitMsg.toString());
+      commit.setMessage(commitMessage(srcManifestRepo, extraCommitMsg));
     }
 
     return true;
   }
 
+  /**
+   * @return message of a snapshot manifest commit
+   */
+  static String commitMessage(String srcManifestRepo, String extraCommitMsg) {
+    // extra commit message (such as the one-liner git log) is put in
+    // the body because:
+    // 1) not all manifest update has a one-line git log (such as
+    //    the manifest generated from the initial subscription)
+    // 2) An manifest update may contain multiple project, which means
+    //    multiple one-line git log
+    StringBuilder commitMsg = new StringBuilder();
+    if (extraCommitMsg != null && extraCommitMsg.length() > 0) {
+      String sha1 = extraCommitMsg.split("\n")[1];
+      commitMsg.append(sha1 + "\n\n");
+      commitMsg.append(extraCommitMsg);
+    } else {
+      commitMsg.append("Snapshot manifest from " +
+              srcManifestRepo + " updated");
+    }
+    return commitMsg.toString();
+  }
+
+  /**
+   * Add the project/sha/subject lines of one more commit to those of a
+   * coalesced snapshot.  A commit that couldn't be described is left out,
+   * the lines stay triples and the first sha stays on the second line.
+   */
+  static void appendExtraCommitMsg(StringBuilder extraCommitMsgs,
+                                   String extraCommitMsg) {
+    if (extraCommitMsg == null || extraCommitMsg.isEmpty()) {
+      return;
+    }
+    if (extraCommitMsgs.length() > 0) {
+      extraCommitMsgs.append("\n");
+    }
+    extraCommitMsgs.append(extraCommitMsg);
+  }
+
   @Override
   public Manifest readManifest(String path) throws ManifestReadException {
     if (manifests.containsKey(path)) {
       return manifests.get(path);
     }
 
-    throw new ManifestReadException(path);
+    ObjectId blob = blobs.get(path);
+    if (blob == null) {
+      throw new ManifestReadException(path);
+    }
+
+    Manifest manifest = ManifestCache.get(blob);
+    if (manifest == null) {
+      try (InputStream input =
+               db.open(blob, Constants.OBJ_BLOB).openStream()) {
+        manifest = ManifestParser.parse(input);
+      } catch (IOException | XMLStreamException e) {
+        throw new ManifestReadException(path, e);
+      }
+      ManifestCache.put(blob, manifest);
+    }
+    manifests.put(path, manifest);
+    return manifest;
+  }
+
+  /**
+   * Parse a single manifest outside of a load, such as a snapshot manifest
+   * read back from its blob
+   */
+  static Manifest parseManifest(byte[] xml) throws JAXBException {
+    Unmarshaller unmarshaller = unmarshallers.poll();
+    if (unmarshaller == null) {
+      unmarshaller = getJaxbContext().createUnmarshaller();
+    }
+    try {
+      return (Manifest) unmarshaller.unmarshal(new ByteArrayInputStream(xml));
+    } finally {
+      unmarshallers.offer(unmarshaller);
+    }
+  }
+
+  /**
+   * Parse the manifest in a blob, unless the same blob was parsed before.
+   * The manifest may be shared through {@link ManifestCache}, it is not to
+   * be modified.
+   */
+  static Manifest parseManifest(Repository repo, ObjectId blob)
+      throws JAXBException, IOException {
+    try (ObjectReader reader = repo.newObjectReader()) {
+      return parseManifest(reader, blob);
+    }
+  }
+
+  static Manifest parseManifest(ObjectReader reader, ObjectId blob)
+      throws JAXBException, IOException {
+    Manifest manifest = ManifestCache.get(blob);
+    if (manifest == null) {
+      manifest = parseManifest(
+          reader.open(blob, Constants.OBJ_BLOB).getBytes());
+      ManifestCache.put(blob, manifest);
+    }
+    return manifest;
   }
 
   /**
-   * Must be called inside onSave
+   * @return the manifest as written to the repository
+   */
+  static byte[] formatManifest(Manifest manifest) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ManifestWriter.write(manifest, output);
+    return output.toByteArray();
+  }
+
+  /**
+   * Must be called inside onSave.  Same as saveFile, but the manifest is
+   * written into a reused buffer and inserted from there.
    *
    * @param path
    * @param manifest
-   * @throws JAXBException
+   * @return false if the file already has this content
    * @throws IOException
    */
-  private void saveManifest(String path, Manifest manifest)
-      throws JAXBException, IOException {
-    ByteArrayOutputStream output = new ByteArrayOutputStream();
-    manifestMarshaller.marshal(manifest, output);
-    saveFile(path, output.toByteArray());
+  private boolean saveManifest(String path, Manifest manifest)
+      throws IOException {
+    SaveBuffer buffer = SaveBuffer.acquire();
+    final ObjectId blob;
+    try {
+      ManifestWriter.write(manifest, buffer);
+      DirCacheEntry current = newTree.getEntry(path);
+      if (current != null &&
+          current.getObjectId().equals(buffer.idFor(inserter))) {
+        return false;
+      }
+      blob = buffer.insert(inserter);
+    } finally {
+      buffer.release();
+    }
+
+    DirCacheEditor editor = newTree.editor();
+    editor.add(new DirCacheEditor.PathEdit(path) {
+      @Override
+      public void apply(DirCacheEntry ent) {
+        ent.setFileMode(FileMode.REGULAR_FILE);
+        ent.setObjectId(blob);
+      }
+    });
+    editor.finish();
+    return true;
   }
 
   static void tagManifest(GitRepositoryManager gitRepoManager,
@@ -294,7 +535,7 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
    * @param manifest
    * @param lookup
    */
-  static void affixManifest(GitRepositoryManager gitRepoManager,
+  static void affixManifest(RepoSession session,
                             Manifest manifest,
                             Table<String, String, String> lookup)
                                           throws GitAPIException, IOException {
@@ -322,7 +563,7 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
       }
     };
 
-    traverseManifestAndApplyOp(gitRepoManager, manifest.getProject(), defaultRef, op, lookup);
+    traverseManifestAndApplyOp(session, manifest.getProject(), defaultRef, op, lookup);
   }
 
   static void traverseManifestAndApplyOp(
@@ -331,6 +572,20 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
       String defaultRef,
       ManifestOp op,
       Table<String, String, String> lookup) throws GitAPIException, IOException {
+    try (RepoSession session = new RepoSession(gitRepoManager)) {
+      traverseManifestAndApplyOp(session, projects, defaultRef, op, lookup);
+    }
+  }
+
+  /**
+   * @param session the project repositories are opened through, once each
+   */
+  static void traverseManifestAndApplyOp(
+      RepoSession session,
+      List<com.amd.gerrit.plugins.manifestsubscription.manifest.Project> projects,
+      String defaultRef,
+      ManifestOp op,
+      Table<String, String, String> lookup) throws GitAPIException, IOException {
 
     String ref;
     String hash;
@@ -351,8 +606,8 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
 
         if (hash == null) {
           p = new Project.NameKey(projectName);
-          try (Repository db = gitRepoManager.openRepository(p)) {
-            hash = db.resolve(ref).getName();
+          try {
+            hash = session.open(p).resolve(ref).getName();
           } catch (IOException | NullPointerException e) {
             log.warn("Cannot resolve ref: " + ref +
                 "\n\t" + projectName +
@@ -362,12 +617,12 @@ public class VersionedManifests extends VersionedMetaData implements ManifestPro
 
         if (hash != null) {
           if (lookup != null) lookup.put(projectName, ref, hash);
-          op.apply(project, hash, ref, gitRepoManager);
+          op.apply(project, hash, ref, session.getRepoManager());
         }
       }
 
       if (project.getProject().size() > 0) {
-        traverseManifestAndApplyOp(gitRepoManager, project.getProject(), defaultRef, op, lookup);
+        traverseManifestAndApplyOp(session, project.getProject(), defaultRef, op, lookup);
       }
     }
   }
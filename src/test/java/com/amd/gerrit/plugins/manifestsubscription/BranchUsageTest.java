@@ -0,0 +1,115 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class BranchUsageTest {
+  private static final String MASTER =
+      SubscriptionIndexFile.key("manifest", "master");
+  private static final String RELEASE =
+      SubscriptionIndexFile.key("manifest", "release/1.0");
+  private static final String OTHER =
+      SubscriptionIndexFile.key("other", "master");
+
+  @Test
+  public void testLoadedOnFirstUse() {
+    BranchUsage usage = new BranchUsage();
+    assertThat(usage.isLoaded(MASTER)).isFalse();
+    usage.markUsed(MASTER, 1000);
+    assertThat(usage.isLoaded(MASTER)).isTrue();
+    assertThat(usage.isLoaded(RELEASE)).isFalse();
+  }
+
+  @Test
+  public void testIdleBranches() {
+    BranchUsage usage = new BranchUsage();
+    usage.markUsed(MASTER, 1000);
+    usage.markUsed(RELEASE, 2000);
+    usage.markUsed(OTHER, 3000);
+
+    assertThat(usage.getIdle(2500)).containsExactly(MASTER, RELEASE);
+    assertThat(usage.isIdle(MASTER, 2500)).isTrue();
+    assertThat(usage.isIdle(OTHER, 2500)).isFalse();
+
+    // used again after the eviction was queued, kept
+    usage.markUsed(MASTER, 4000);
+    assertThat(usage.isIdle(MASTER, 2500)).isFalse();
+    assertThat(usage.getIdle(2500)).containsExactly(RELEASE);
+  }
+
+  @Test
+  public void testEvictedBranchIsLoadedAgain() {
+    BranchUsage usage = new BranchUsage();
+    usage.markUsed(MASTER, 1000);
+    usage.remove(MASTER);
+    assertThat(usage.isLoaded(MASTER)).isFalse();
+    assertThat(usage.isIdle(MASTER, 2000)).isFalse();
+    assertThat(usage.getIdle(2000)).isEmpty();
+  }
+
+  @Test
+  public void testRemovingSourceKeepsOtherSources() {
+    BranchUsage usage = new BranchUsage();
+    usage.markUsed(MASTER, 1000);
+    usage.markUsed(RELEASE, 1000);
+    usage.markUsed(OTHER, 1000);
+
+    usage.removeStartingWith(SubscriptionIndexFile.key("manifest", ""));
+    assertThat(usage.isLoaded(MASTER)).isFalse();
+    assertThat(usage.isLoaded(RELEASE)).isFalse();
+    assertThat(usage.isLoaded(OTHER)).isTrue();
+  }
+
+  @Test
+  public void testEvictedBranchIsDormantForItsProjects() {
+    ProjectBranchKey a = new ProjectBranchKey("a", "master");
+    ProjectBranchKey b = new ProjectBranchKey("b", "master");
+    BranchUsage usage = new BranchUsage();
+    usage.markUsed(MASTER, 1000);
+    usage.markUsed(RELEASE, 1000);
+    usage.evict(MASTER, ImmutableList.of(a, b));
+    usage.evict(RELEASE, ImmutableList.of(a));
+
+    assertThat(usage.isLoaded(MASTER)).isFalse();
+    assertThat(usage.getDormant(a)).containsExactly(MASTER, RELEASE);
+    assertThat(usage.getDormant(b)).containsExactly(MASTER);
+    assertThat(usage.getDormant(new ProjectBranchKey("c", "master")))
+        .isEmpty();
+
+    // loaded again, no longer dormant for any of its projects
+    usage.markUsed(MASTER, 2000);
+    assertThat(usage.getDormant(a)).containsExactly(RELEASE);
+    assertThat(usage.getDormant(b)).isEmpty();
+  }
+
+  @Test
+  public void testRemovedBranchIsNotDormant() {
+    ProjectBranchKey a = new ProjectBranchKey("a", "master");
+    BranchUsage usage = new BranchUsage();
+    usage.markUsed(MASTER, 1000);
+    usage.markUsed(OTHER, 1000);
+    usage.evict(MASTER, ImmutableList.of(a));
+    usage.evict(OTHER, ImmutableList.of(a));
+
+    usage.removeStartingWith(SubscriptionIndexFile.key("manifest", ""));
+    assertThat(usage.getDormant(a)).containsExactly(OTHER);
+    usage.remove(OTHER);
+    assertThat(usage.getDormant(a)).isEmpty();
+  }
+}
@@ -16,6 +16,7 @@ package com.amd.gerrit.plugins.manifestsubscription;
 
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.google.common.collect.Maps;
 import org.apache.commons.compress.utils.IOUtils;
 import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
 import org.eclipse.jgit.junit.TestRepository;
@@ -25,6 +26,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.Map;
+
 import static com.amd.gerrit.plugins.manifestsubscription.manifest.ManifestTest.checkAOSPcontent;
 import static com.amd.gerrit.plugins.manifestsubscription.manifest.ManifestTest.checkTestOnlyContent;
 import static com.google.common.truth.Truth.assertThat;
@@ -148,4 +151,99 @@ public class CanonicalManifestTest extends LocalDiskRepositoryTestCase{
       }
     }
   }
+
+  @Test
+  public void testSharedIncludes() throws Exception {
+    // aospincludereplace.xml removes projects of aospinclude.xml it includes
+    manifest = canonicalManifest.getCanonicalManifest("aospincludereplace.xml");
+    for (Project p : manifest.getProject()) {
+      p.setRevision("modified");
+    }
+    manifest.getProject().clear();
+
+    manifest = canonicalManifest.getCanonicalManifest("aospinclude.xml");
+    checkAOSPcontent(manifest);
+    checkTestOnlyContent(manifest);
+
+    manifest = canonicalManifest.getCanonicalManifest("aospincludereplace.xml");
+    checkAOSPcontent(manifest);
+    int replaced = 0;
+    for (Project p : manifest.getProject()) {
+      if (p.getPath().startsWith("git/test/project")) {
+        assertThat(p.getRevision()).isEqualTo("replaced");
+        replaced++;
+      }
+    }
+    assertThat(replaced).isEqualTo(3);
+  }
+
+  @Test
+  public void testManyRemoveProjects() throws Exception {
+    TestManifests baseBuilder = TestManifests.manifest();
+    for (int i = 0; i < 3000; i++) {
+      baseBuilder.project("project" + i);
+      if (i % 7 == 0) {
+        baseBuilder.groups("tools,notdefault");
+      }
+    }
+    Manifest base = baseBuilder.build();
+    TestManifests topBuilder =
+        TestManifests.manifest().noDefault().include("base.xml");
+    for (int i = 0; i < 3000; i += 5) {
+      topBuilder.removeProject("project" + i);
+    }
+    Manifest top = topBuilder.build();
+    Map<String, Manifest> sources = Maps.newHashMap();
+    sources.put("base.xml", base);
+    sources.put("top.xml", top);
+
+    manifest = new CanonicalManifest(sources).getCanonicalManifest("top.xml");
+    assertThat(manifest.getRemoveProject()).isEmpty();
+    assertThat(manifest.getInclude()).isEmpty();
+    int expected = 0;
+    for (int i = 0; i < 3000; i++) {
+      if (i % 5 != 0 && i % 7 != 0) {
+        assertThat(manifest.getProject().get(expected++).getName())
+            .isEqualTo("project" + i);
+      }
+    }
+    assertThat(manifest.getProject()).hasSize(expected);
+    assertThat(base.getProject()).hasSize(3000);
+  }
+
+  @Test
+  public void testBadManifestOnlyFailsWhenRead() throws Exception {
+    RevCommit rev = util.commit(util.tree(
+        util.file("aosp.xml",
+            util.blob(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/aosp.xml")))),
+        util.file("aospinclude.xml",
+            util.blob(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/aospinclude.xml")))),
+        util.file("bad.xml",
+            util.blob(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/bad.xml")))),
+        util.file("testonly.xml",
+            util.blob(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/testonly.xml"))))
+    ));
+
+    VersionedManifests lazy = new VersionedManifests("master");
+    lazy.load(db, rev);
+    assertThat(lazy.getManifestPaths()).contains("bad.xml");
+
+    manifest = new CanonicalManifest(lazy)
+        .getCanonicalManifest("aospinclude.xml");
+    checkAOSPcontent(manifest);
+    checkTestOnlyContent(manifest);
+
+    try {
+      lazy.readManifest("bad.xml");
+      throw new AssertionError("bad.xml read");
+    } catch (ManifestReadException e) {
+      assertThat(e.getMessage()).isEqualTo("bad.xml");
+    }
+    assertThat(lazy.getManifests().keySet()).containsExactly(
+        "aosp.xml", "aospinclude.xml", "testonly.xml");
+  }
 }
@@ -0,0 +1,111 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Include;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class IncludeGraphTest {
+  private IncludeGraph graph;
+
+  static Manifest createManifest(String... includes) {
+    Manifest manifest = new Manifest();
+    for (String name : includes) {
+      Include include = new Include();
+      include.setName(name);
+      manifest.getInclude().add(include);
+    }
+    return manifest;
+  }
+
+  @Before
+  public void setUp() {
+    // same layout as the manifests in src/test/resources
+    Map<String, Manifest> manifests = Maps.newHashMap();
+    manifests.put("aosp.xml", createManifest());
+    manifests.put("aospinclude.xml", createManifest("aosp.xml"));
+    manifests.put("aospincludereplace.xml", createManifest("aospinclude.xml"));
+    manifests.put("multipleincludes.xml",
+        createManifest("aosp.xml", "testonly.xml"));
+    manifests.put("subdir/aospincludereplace.xml",
+        createManifest("aospinclude.xml", "subdir/../subdir/testonly1.xml"));
+    manifests.put("subdir/testonly1.xml", createManifest());
+    manifests.put("testonly.xml", createManifest());
+    graph = new IncludeGraph(manifests);
+  }
+
+  @Test
+  public void testAffectedManifests() {
+    assertThat(graph.getAffectedManifests(
+        Collections.singleton("aosp.xml"))).containsExactly(
+        "aosp.xml", "aospinclude.xml", "aospincludereplace.xml",
+        "multipleincludes.xml", "subdir/aospincludereplace.xml");
+    assertThat(graph.getAffectedManifests(
+        Collections.singleton("subdir/testonly1.xml"))).containsExactly(
+        "subdir/testonly1.xml", "subdir/aospincludereplace.xml");
+    assertThat(graph.getAffectedManifests(
+        Arrays.asList("testonly.xml", "README"))).containsExactly(
+        "testonly.xml", "multipleincludes.xml");
+    assertThat(graph.getAffectedManifests(
+        Collections.<String>emptySet())).isEmpty();
+  }
+
+  @Test
+  public void testUpdateAndRemove() {
+    graph.update("multipleincludes.xml", createManifest("testonly.xml"));
+    assertThat(graph.getAffectedManifests(
+        Collections.singleton("aosp.xml"))).doesNotContain(
+        "multipleincludes.xml");
+
+    graph.remove("aospinclude.xml");
+    assertThat(graph.getManifests()).doesNotContain("aospinclude.xml");
+    // still included by others, they are affected when it comes back
+    assertThat(graph.getAffectedManifests(
+        Collections.singleton("aospinclude.xml"))).containsExactly(
+        "aospincludereplace.xml", "subdir/aospincludereplace.xml");
+    assertThat(graph.getAffectedManifests(
+        Collections.singleton("aosp.xml"))).containsExactly("aosp.xml");
+  }
+
+  @Test
+  public void testCycles() {
+    assertThat(graph.findCycle("subdir/aospincludereplace.xml")).isNull();
+
+    graph.update("aosp.xml", createManifest("aospincludereplace.xml"));
+    assertThat(graph.findCycle("aosp.xml")).isEqualTo(Arrays.asList(
+        "aosp.xml", "aospincludereplace.xml", "aospinclude.xml", "aosp.xml"));
+    // not part of the loop but reaches it
+    assertThat(graph.findCycle("multipleincludes.xml")).isEqualTo(
+        Arrays.asList("aosp.xml", "aospincludereplace.xml", "aospinclude.xml",
+            "aosp.xml"));
+    assertThat(graph.findCycle("testonly.xml")).isNull();
+    // the affected walk terminates regardless
+    assertThat(graph.getAffectedManifests(
+        Collections.singleton("aosp.xml"))).hasSize(5);
+
+    graph.update("testonly.xml", createManifest("testonly.xml"));
+    assertThat(graph.findCycle("testonly.xml"))
+        .isEqualTo(Arrays.asList("testonly.xml", "testonly.xml"));
+  }
+}
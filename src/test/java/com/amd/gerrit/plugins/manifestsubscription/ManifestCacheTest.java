@@ -0,0 +1,90 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Test;
+
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.manifest;
+import static com.google.common.truth.Truth.assertThat;
+
+public class ManifestCacheTest {
+  private static final ObjectId BLOB =
+      ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+
+  private static void inject(final Cache<ObjectId, Manifest> cache) {
+    Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        TypeLiteral<Cache<ObjectId, Manifest>> type =
+            new TypeLiteral<Cache<ObjectId, Manifest>>() {};
+        bind(Key.get(type, Names.named(ManifestCache.CACHE_NAME)))
+            .toInstance(cache);
+        requestStaticInjection(ManifestCache.class);
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    // the cache is static, leave nothing behind for other tests
+    inject(CacheBuilder.newBuilder().maximumSize(0).<ObjectId, Manifest>build());
+  }
+
+  @Test
+  public void testSharesTheCachedManifest() {
+    inject(CacheBuilder.newBuilder().<ObjectId, Manifest>build());
+    assertThat(ManifestCache.get(BLOB)).isNull();
+
+    Manifest manifest = manifest()
+        .include("base.xml")
+        .project("project0").annotation("owner", "tools")
+        .project("project1")
+        .build();
+    ManifestCache.put(BLOB, manifest);
+    assertThat(ManifestCache.get(BLOB)).isSameAs(manifest);
+
+    // changes go to a copy, the cached manifest stays as parsed
+    Manifest copy = ManifestCopy.copyProjects(ManifestCache.get(BLOB));
+    copy.getProject().get(0).setRevision("0123");
+    copy.getProject().get(0).getAnnotation().clear();
+    copy.getInclude().clear();
+    Manifest cached = ManifestCache.get(BLOB);
+    assertThat(cached.getProject().get(0).getRevision()).isNull();
+    assertThat(cached.getProject().get(0).getAnnotation()).hasSize(1);
+    assertThat(cached.getInclude()).hasSize(1);
+  }
+
+  @Test
+  public void testWeightIsProjectCount() {
+    // nested projects count, removed ones don't
+    Manifest manifest = manifest()
+        .projects("project", 2)
+        .project("project2").nested("nested0").nested("nested1")
+        .removeProject("project3")
+        .build();
+    assertThat(new ManifestCache.ManifestWeigher().weigh(BLOB, manifest))
+        .isEqualTo(6);
+  }
+}
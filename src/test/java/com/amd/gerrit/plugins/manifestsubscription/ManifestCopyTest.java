@@ -0,0 +1,87 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Copyfile;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Remote;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.manifest;
+import static com.google.common.truth.Truth.assertThat;
+
+public class ManifestCopyTest {
+  private static Manifest createNestedManifest() {
+    Manifest manifest = manifest()
+        .include("base.xml")
+        .removeProject("old")
+        .project("project0").groups("pdk,notdefault")
+        .annotation("owner", "tools").nested("nested0")
+        .project("project1")
+        .build();
+    Remote remote = new Remote();
+    remote.setName("origin");
+    manifest.getRemote().add(remote);
+    Project project = manifest.getProject().get(0);
+    project.setRemote(remote);
+    project.getCopyfile().add(new Copyfile());
+    return manifest;
+  }
+
+  private static byte[] write(Manifest manifest) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ManifestWriter.write(manifest, out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testCopyProjects() throws Exception {
+    Manifest manifest = createNestedManifest();
+    byte[] before = write(manifest);
+
+    Manifest copy = ManifestCopy.copyProjects(manifest);
+    assertThat(write(copy)).isEqualTo(before);
+    assertThat(copy.getRemote().get(0))
+        .isSameAs(manifest.getRemote().get(0));
+    assertThat(copy.getDefault()).isSameAs(manifest.getDefault());
+
+    copy.getProject().get(0).setRevision("0123");
+    copy.getProject().get(0).setGroups(null);
+    copy.getProject().get(0).getAnnotation().clear();
+    copy.getProject().get(0).getProject().get(0).setUpstream("master");
+    copy.getProject().remove(1);
+    copy.getInclude().clear();
+    copy.getRemoveProject().clear();
+    assertThat(write(manifest)).isEqualTo(before);
+  }
+
+  @Test
+  public void testCopySharesProjects() throws Exception {
+    Manifest manifest = createNestedManifest();
+    byte[] before = write(manifest);
+
+    Manifest copy = ManifestCopy.copy(manifest);
+    assertThat(copy.getProject().get(0))
+        .isSameAs(manifest.getProject().get(0));
+
+    copy.getProject().clear();
+    copy.getRemote().clear();
+    copy.setDefault(null);
+    assertThat(write(manifest)).isEqualTo(before);
+  }
+}
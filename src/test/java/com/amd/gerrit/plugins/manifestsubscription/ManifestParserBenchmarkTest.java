@@ -0,0 +1,118 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Time and allocation per parse of aosp.xml repeated six times, about 3000
+ * projects, by JAXB and by {@link ManifestParser}.  Only run with
+ * {@code mvn test -Pbenchmark}.
+ */
+public class ManifestParserBenchmarkTest {
+  private static final int COPIES = 6;
+  private static final int ROUNDS = 20;
+
+  private interface Parser {
+    Manifest parse(byte[] xml) throws Exception;
+  }
+
+  @Test
+  public void testParse() throws Exception {
+    final byte[] xml = scaledAosp();
+    Parser jaxb = new Parser() {
+      @Override
+      public Manifest parse(byte[] xml) throws Exception {
+        return VersionedManifests.parseManifest(xml);
+      }
+    };
+    Parser stax = new Parser() {
+      @Override
+      public Manifest parse(byte[] xml) throws Exception {
+        return ManifestParser.parse(new ByteArrayInputStream(xml));
+      }
+    };
+
+    assertThat(jaxb.parse(xml).getProject()).hasSize(515 * COPIES);
+    assertThat(stax.parse(xml).getProject()).hasSize(515 * COPIES);
+
+    // warm up
+    measure(jaxb, xml);
+    measure(stax, xml);
+
+    long[] jaxbCost = measure(jaxb, xml);
+    long[] staxCost = measure(stax, xml);
+    System.out.println(String.format(
+        "%d projects, per parse: JAXB %d us %d KiB, StAX %d us %d KiB",
+        515 * COPIES, jaxbCost[0] / 1000, jaxbCost[1] / 1024,
+        staxCost[0] / 1000, staxCost[1] / 1024));
+  }
+
+  /**
+   * @return nanoseconds and bytes allocated per parse, bytes 0 if the JVM
+   * doesn't tell
+   */
+  private static long[] measure(Parser parser, byte[] xml) throws Exception {
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      parser.parse(xml);
+    }
+    long time = (System.nanoTime() - start) / ROUNDS;
+    bytes = (allocatedBytes() - bytes) / ROUNDS;
+    return new long[] {time, Math.max(bytes, 0)};
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  /**
+   * aosp.xml with its projects repeated under different names
+   */
+  private static byte[] scaledAosp() throws Exception {
+    String aosp;
+    try (InputStream in =
+             ManifestParserBenchmarkTest.class.getResourceAsStream(
+                 "/aosp.xml")) {
+      aosp = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+    }
+    int first = aosp.indexOf("  <project ");
+    int last = aosp.lastIndexOf("</manifest>");
+    String projects = aosp.substring(first, last);
+
+    StringBuilder xml = new StringBuilder(aosp.substring(0, first));
+    for (int i = 0; i < COPIES; i++) {
+      xml.append(projects.replace("name=\"", "name=\"copy" + i + "/"));
+    }
+    xml.append(aosp.substring(last));
+    return xml.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Remote;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static com.amd.gerrit.plugins.manifestsubscription.manifest.ManifestTest.checkAOSPcontent;
+import static com.amd.gerrit.plugins.manifestsubscription.manifest.ManifestTest.checkTestOnlyContent;
+import static com.google.common.truth.Truth.assertThat;
+
+public class ManifestParserTest {
+  private static final String[] MANIFESTS = {"aosp.xml", "aospinclude.xml",
+      "aospincludereplace.xml", "multipleincludes.xml",
+      "subdir/aospincludereplace.xml", "subdir/testonly1.xml",
+      "testonly.xml"};
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  static Manifest parse(String path) throws Exception {
+    try (InputStream input =
+             ManifestParserTest.class.getResourceAsStream("/" + path)) {
+      return ManifestParser.parse(input);
+    }
+  }
+
+  @Test
+  public void testSameAsJaxb() throws Exception {
+    JAXBContext ctx = JAXBContext.newInstance(Manifest.class);
+    for (String path : MANIFESTS) {
+      Manifest expected;
+      try (InputStream input = getClass().getResourceAsStream("/" + path)) {
+        expected = (Manifest) ctx.createUnmarshaller().unmarshal(input);
+      }
+      assertThat(parse(path)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void testFullModel() throws Exception {
+    Manifest manifest = parse("aosp.xml");
+    checkAOSPcontent(manifest);
+    assertThat(manifest.getProject()).hasSize(515);
+    assertThat(manifest.getProject().get(0).getRemote()).isNull();
+    assertThat(((Remote) manifest.getDefault().getRemote()).getFetch())
+        .isEqualTo("..");
+
+    checkTestOnlyContent(parse("testonly.xml"));
+  }
+
+  @Test
+  public void testProlog() throws Exception {
+    String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        "<!-- generated -->\n" +
+        "<!DOCTYPE manifest SYSTEM \"manifest.dtd\">\n" +
+        "<?repo keep?>\n" +
+        "<manifest>\n" +
+        "  <default revision=\"master\"/>\n" +
+        "  <project name=\"platform/build\" groups=\"pdk\"/>\n" +
+        "</manifest>\n";
+    Manifest manifest = ManifestParser.parse(
+        new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    assertThat(manifest.getDefault().getRevision()).isEqualTo("master");
+    assertThat(manifest.getProject()).hasSize(1);
+    Project project = manifest.getProject().get(0);
+    assertThat(project.getName()).isEqualTo("platform/build");
+    assertThat(project.getGroups()).isEqualTo("pdk");
+  }
+
+  @Test
+  public void testNotAManifest() throws Exception {
+    thrown.expect(XMLStreamException.class);
+    parse("bad.xml");
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ManifestPathFilterTest {
+  @Test
+  public void testDefaultPatternWalksEverything() {
+    ManifestPathFilter filter = ManifestPathFilter.get(
+        ManifestSubscriptionConfig.DEFAULT_MANIFEST_PATH_PATTERN);
+    assertThat(filter.mayMatchBelow("docs")).isTrue();
+    assertThat(filter.mayMatchBelow("vendor/scripts")).isTrue();
+    assertThat(filter.matches("default.xml")).isTrue();
+    assertThat(filter.matches("subdir/testonly1.xml")).isTrue();
+    assertThat(filter.matches("nonxml.txt")).isFalse();
+  }
+
+  @Test
+  public void testSkipsDirectoriesThatCannotMatch() {
+    ManifestPathFilter filter =
+        ManifestPathFilter.get("(manifests|release)/[^/]*\\.xml");
+    assertThat(filter.mayMatchBelow("manifests")).isTrue();
+    assertThat(filter.mayMatchBelow("release")).isTrue();
+    assertThat(filter.mayMatchBelow("manifests/old")).isFalse();
+    assertThat(filter.mayMatchBelow("docs")).isFalse();
+    assertThat(filter.mayMatchBelow("man")).isFalse();
+    assertThat(filter.matches("manifests/default.xml")).isTrue();
+    assertThat(filter.matches("manifests/old/default.xml")).isFalse();
+  }
+
+  @Test
+  public void testUnsupportedSyntaxWalksEverything() {
+    ManifestPathFilter filter = ManifestPathFilter.get("v\\d+/.*\\.xml");
+    assertThat(filter.mayMatchBelow("docs")).isTrue();
+    assertThat(filter.matches("v12/default.xml")).isTrue();
+    assertThat(filter.matches("vd/default.xml")).isFalse();
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.gerrit.reviewdb.client.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ManifestSourceFinderTest {
+  private ExecutorService pool;
+  private List<String> looked;
+
+  @Before
+  public void setUp() {
+    pool = Executors.newFixedThreadPool(4);
+    looked = Collections.synchronizedList(Lists.<String>newArrayList());
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  private ManifestSourceFinder.ConfigLookup lookup() {
+    return new ManifestSourceFinder.ConfigLookup() {
+      @Override
+      public PluginProjectConfig get(Project.NameKey p) throws IOException {
+        looked.add(p.get());
+        switch (p.get()) {
+          case "manifest":
+            return new PluginProjectConfig("store",
+                ImmutableSet.of("master"));
+          case "broken":
+            throw new IOException("cannot read " + p.get());
+          case "gone":
+            return null;
+          default:
+            // no store configured
+            return new PluginProjectConfig(null, ImmutableSet.<String>of());
+        }
+      }
+    };
+  }
+
+  @Test
+  public void testFindsSourcesFromTheirConfigOnly() throws Exception {
+    List<Project.NameKey> projects = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      projects.add(new Project.NameKey("project" + i));
+    }
+    projects.add(new Project.NameKey("manifest"));
+
+    Map<String, PluginProjectConfig> sources =
+        ManifestSourceFinder.find(projects, lookup(), pool);
+    assertThat(sources.keySet()).containsExactly("manifest");
+    assertThat(sources.get("manifest").getStore()).isEqualTo("store");
+    // every project looked up once
+    assertThat(looked).hasSize(101);
+    assertThat(ImmutableSet.copyOf(looked)).hasSize(101);
+  }
+
+  @Test
+  public void testUnreadableProjectsAreLeftOut() throws Exception {
+    Map<String, PluginProjectConfig> sources = ManifestSourceFinder.find(
+        ImmutableList.of(new Project.NameKey("broken"),
+            new Project.NameKey("gone"), new Project.NameKey("manifest")),
+        lookup(), pool);
+    assertThat(sources.keySet()).containsExactly("manifest");
+  }
+}
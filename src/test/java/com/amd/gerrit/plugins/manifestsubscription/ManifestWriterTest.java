@@ -0,0 +1,85 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Annotation;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Remote;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import java.io.ByteArrayOutputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ManifestWriterTest {
+  private static Marshaller marshaller;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    marshaller = JAXBContext.newInstance(Manifest.class).createMarshaller();
+    marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+  }
+
+  private static void assertSameAsJaxb(Manifest manifest) throws Exception {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    marshaller.marshal(manifest, expected);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    ManifestWriter.write(manifest, written);
+    assertThat(written.toString("UTF-8"))
+        .isEqualTo(expected.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSameAsJaxb() throws Exception {
+    for (String path : new String[] {"aosp.xml", "aospinclude.xml",
+        "multipleincludes.xml", "subdir/aospincludereplace.xml"}) {
+      assertSameAsJaxb(ManifestParserTest.parse(path));
+    }
+    assertSameAsJaxb(new Manifest());
+  }
+
+  @Test
+  public void testEscaping() throws Exception {
+    Manifest manifest = new Manifest();
+    manifest.setNotice("<b>\"a\" & 'b'</b>\r\n\t\u00e9\ud83d\ude00");
+    Remote remote = new Remote();
+    remote.setName("aosp");
+    remote.setFetch("<&>\"'\t\r\n\u00e9");
+    manifest.getRemote().add(remote);
+
+    Project project = new Project();
+    project.setName("a&b");
+    project.setRemote(remote);
+    Annotation annotation = new Annotation();
+    annotation.setName("n");
+    annotation.setValue("x > y");
+    project.getAnnotation().add(annotation);
+    annotation = new Annotation();
+    annotation.setName("k");
+    annotation.setValue("v");
+    annotation.setKeep("true");
+    project.getAnnotation().add(annotation);
+    Project nested = new Project();
+    nested.setName("nested");
+    project.getProject().add(nested);
+    manifest.getProject().add(project);
+
+    assertSameAsJaxb(manifest);
+  }
+}
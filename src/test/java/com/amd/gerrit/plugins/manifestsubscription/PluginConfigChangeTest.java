@@ -0,0 +1,83 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static com.amd.gerrit.plugins.manifestsubscription.PluginConfigChange.BRANCHES;
+import static com.amd.gerrit.plugins.manifestsubscription.PluginConfigChange.NONE;
+import static com.amd.gerrit.plugins.manifestsubscription.PluginConfigChange.RELOAD;
+import static com.google.common.truth.Truth.assertThat;
+
+public class PluginConfigChangeTest {
+  private static PluginProjectConfig config(String store, String... branches) {
+    return new PluginProjectConfig(store, ImmutableSet.copyOf(branches));
+  }
+
+  @Test
+  public void testUnrelatedEdit() {
+    PluginProjectConfig cfg = config("store", "master");
+    assertThat(PluginConfigChange.of(cfg, config("store", "master"), cfg))
+        .isEqualTo(NONE);
+    // not a manifest source before or after
+    assertThat(PluginConfigChange.of(null, config(null), null))
+        .isEqualTo(NONE);
+  }
+
+  @Test
+  public void testBranchAddedOrRemoved() {
+    PluginProjectConfig loaded = config("store", "master");
+    assertThat(PluginConfigChange.of(loaded,
+        config("store", "master", "topic"), loaded)).isEqualTo(BRANCHES);
+
+    loaded = config("store", "master", "topic");
+    assertThat(PluginConfigChange.of(loaded, config("store", "master"),
+        loaded)).isEqualTo(BRANCHES);
+  }
+
+  @Test
+  public void testStoreMigration() {
+    PluginProjectConfig loaded = config("store", "master");
+    assertThat(PluginConfigChange.of(loaded, config("other", "master"),
+        loaded)).isEqualTo(RELOAD);
+  }
+
+  @Test
+  public void testManifestPathPatternChanged() {
+    PluginProjectConfig loaded = config("store", "master");
+    PluginProjectConfig newCfg = new PluginProjectConfig("store",
+        ImmutableSet.of("master"), ".*\\.xml");
+    assertThat(PluginConfigChange.of(loaded, newCfg, loaded))
+        .isEqualTo(RELOAD);
+  }
+
+  @Test
+  public void testSourceEnabledOrDisabled() {
+    assertThat(PluginConfigChange.of(null, config("store", "master"), null))
+        .isEqualTo(RELOAD);
+    PluginProjectConfig loaded = config("store", "master");
+    assertThat(PluginConfigChange.of(loaded, null, loaded)).isEqualTo(RELOAD);
+    assertThat(PluginConfigChange.of(loaded, config(null, "master"), loaded))
+        .isEqualTo(RELOAD);
+  }
+
+  @Test
+  public void testBranchesOfSourceNotLoaded() {
+    // no branch of it existed when it was loaded
+    assertThat(PluginConfigChange.of(config("store", "master"),
+        config("store", "master", "topic"), null)).isEqualTo(RELOAD);
+  }
+}
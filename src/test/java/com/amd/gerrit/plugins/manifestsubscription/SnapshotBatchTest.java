@@ -0,0 +1,125 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.manifest;
+import static com.google.common.truth.Truth.assertThat;
+
+public class SnapshotBatchTest extends LocalDiskRepositoryTestCase {
+  private static final String MASTER = "refs/heads/m/master/default.xml";
+  private static final String DEV = "refs/heads/m/dev/default.xml";
+  private static final String GONE = "refs/heads/m/gone/default.xml";
+
+  private Repository db;
+  private TestRepository<Repository> util;
+  private PersonIdent ident;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    db = createBareRepository();
+    util = new TestRepository<>(db);
+    ident = new PersonIdent("Gerrit Code Review", "gerrit@example.com");
+  }
+
+  /**
+   * Canonical, as written to the store: includes resolved, groups and
+   * annotations kept
+   */
+  private static Manifest createSnapshot() {
+    return manifest()
+        .project("project0").groups("pdk").annotation("owner", "tools")
+        .project("project1").nested("nested0")
+        .build();
+  }
+
+  private RevCommit createBranch(String refName, Manifest manifest)
+      throws Exception {
+    RevCommit commit = util.commit(util.tree(
+        util.file(ManifestSubscription.SNAPSHOT_PATH,
+            util.blob(VersionedManifests.formatManifest(manifest)))));
+    util.update(refName, commit);
+    return commit;
+  }
+
+  private ObjectId getSnapshotBlob(RevWalk walk, String refName)
+      throws Exception {
+    RevCommit commit = walk.parseCommit(db.exactRef(refName).getObjectId());
+    try (TreeWalk treeWalk = TreeWalk.forPath(db,
+        ManifestSubscription.SNAPSHOT_PATH, commit.getTree())) {
+      return treeWalk.getObjectId(0);
+    }
+  }
+
+  @Test
+  public void testWritesChangedBranchesTogether() throws Exception {
+    Manifest manifest = createSnapshot();
+    RevCommit master = createBranch(MASTER, manifest);
+    RevCommit dev = createBranch(DEV, manifest);
+
+    Manifest updated = createSnapshot();
+    updated.getProject().get(0).setRevision(master.getName());
+
+    Map<String, ObjectId> blobs;
+    try (RevWalk walk = new RevWalk(db);
+         SnapshotBatch batch = new SnapshotBatch(db, walk, ident)) {
+      assertThat(batch.add(MASTER, updated, "manifest", "")).isTrue();
+      assertThat(batch.add(DEV, manifest, "manifest", "")).isTrue();
+      assertThat(batch.add(GONE, updated, "manifest", "")).isFalse();
+      assertThat(db.exactRef(MASTER).getObjectId()).isEqualTo(master);
+
+      blobs = batch.execute(new Project.NameKey("store"), null,
+          GitReferenceUpdated.DISABLED, null);
+    }
+
+    try (RevWalk walk = new RevWalk(db)) {
+      RevCommit commit =
+          walk.parseCommit(db.exactRef(MASTER).getObjectId());
+      assertThat(commit.getParent(0)).isEqualTo(master);
+      assertThat(commit.getFullMessage())
+          .isEqualTo("Snapshot manifest from manifest updated");
+      assertThat(blobs.get(MASTER)).isEqualTo(getSnapshotBlob(walk, MASTER));
+      Manifest written = ManifestParser.parse(
+          db.open(blobs.get(MASTER)).openStream());
+      assertThat(written.getProject().get(0).getRevision())
+          .isEqualTo(master.getName());
+      assertThat(written.getProject().get(0).getGroups()).isEqualTo("pdk");
+      assertThat(written.getProject().get(0).getAnnotation()).hasSize(1);
+      assertThat(written.getProject().get(1).getProject()).hasSize(1);
+
+      // same manifest, not committed
+      assertThat(db.exactRef(DEV).getObjectId()).isEqualTo(dev);
+      assertThat(blobs.get(DEV)).isEqualTo(getSnapshotBlob(walk, DEV));
+    }
+    assertThat(blobs.keySet()).containsExactly(MASTER, DEV);
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class StartupEventBufferTest {
+  private StartupEventBuffer<String> buffer;
+  private List<String> dispatched;
+  private StartupEventBuffer.Dispatcher<String> dispatcher;
+
+  @Before
+  public void setUp() {
+    buffer = new StartupEventBuffer<>(new StartupEventBuffer.Keys<String>() {
+      @Override
+      public String of(String event) {
+        // events of the same ref
+        return event.substring(0, 1);
+      }
+    });
+    dispatched = Collections.synchronizedList(Lists.<String>newArrayList());
+    dispatcher = new StartupEventBuffer.Dispatcher<String>() {
+      @Override
+      public void dispatch(String event) {
+        dispatched.add(event);
+      }
+    };
+  }
+
+  @Test
+  public void testHeldBackUntilReady() {
+    assertThat(buffer.isReady()).isFalse();
+    assertThat(buffer.offer("1")).isTrue();
+    assertThat(buffer.offer("2")).isTrue();
+    assertThat(buffer.size()).isEqualTo(2);
+    assertThat(dispatched).isEmpty();
+
+    assertThat(buffer.dispatch(dispatcher)).isEqualTo(2);
+    assertThat(buffer.isReady()).isTrue();
+    assertThat(buffer.size()).isEqualTo(0);
+    assertThat(dispatched).isEqualTo(ImmutableList.of("1", "2"));
+
+    // dispatched by the caller from now on
+    assertThat(buffer.offer("3")).isFalse();
+  }
+
+  @Test
+  public void testReceivedWhileDispatchingComeAfter() {
+    buffer.offer("1");
+    buffer.offer("2");
+    int count = buffer.dispatch(new StartupEventBuffer.Dispatcher<String>() {
+      @Override
+      public void dispatch(String event) {
+        if (!event.startsWith("late")) {
+          // not ready yet, the buffer is not held while dispatching
+          assertThat(buffer.offer("late" + event)).isTrue();
+        }
+        dispatched.add(event);
+      }
+    });
+
+    assertThat(count).isEqualTo(4);
+    assertThat(dispatched).isEqualTo(
+        ImmutableList.of("1", "2", "late1", "late2"));
+    assertThat(buffer.isReady()).isTrue();
+  }
+
+  @Test
+  public void testDropsWhileFull() {
+    buffer.setCapacity(2);
+    assertThat(buffer.offer("a1")).isTrue();
+    assertThat(buffer.offer("b1")).isTrue();
+    // returns right away, only the key is kept, once
+    assertThat(buffer.offer("a2")).isTrue();
+    assertThat(buffer.offer("c1")).isTrue();
+    assertThat(buffer.offer("a3")).isTrue();
+    assertThat(buffer.size()).isEqualTo(2);
+    assertThat(buffer.getDropped()).containsExactly("a", "c");
+
+    assertThat(buffer.dispatch(dispatcher)).isEqualTo(2);
+    assertThat(dispatched).isEqualTo(ImmutableList.of("a1", "b1"));
+    assertThat(buffer.offer("a4")).isFalse();
+  }
+
+  @Test
+  public void testDiscardDropsEverything() {
+    buffer.setCapacity(1);
+    buffer.offer("a1");
+    buffer.offer("b1");
+    buffer.discard();
+    assertThat(buffer.size()).isEqualTo(0);
+    assertThat(buffer.getDropped()).isEmpty();
+
+    // stopped, never dispatched
+    assertThat(buffer.offer("c1")).isTrue();
+    assertThat(buffer.getDropped()).isEmpty();
+    assertThat(buffer.dispatch(dispatcher)).isEqualTo(0);
+    assertThat(buffer.isReady()).isFalse();
+    assertThat(dispatched).isEmpty();
+  }
+}
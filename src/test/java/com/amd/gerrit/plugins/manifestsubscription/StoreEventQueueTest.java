@@ -0,0 +1,241 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class StoreEventQueueTest {
+  // "a" and "b" are queued in different lanes of two
+  private static final String A = "a";
+  private static final String B = "b";
+
+  private StoreEventQueue queue;
+  private List<String> ran;
+
+  @Before
+  public void setUp() {
+    ran = Collections.synchronizedList(Lists.<String>newArrayList());
+  }
+
+  @After
+  public void tearDown() {
+    if (queue != null) {
+      queue.shutdown();
+    }
+  }
+
+  private StoreEventQueue newQueue(int threads, int queueSize) {
+    return new StoreEventQueue("test", threads, queueSize,
+        new StoreEventQueue.CatchUp() {
+          @Override
+          public Runnable forKey(String key) {
+            return record("catch-up " + key);
+          }
+        });
+  }
+
+  private Runnable record(final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+
+  private static Runnable await(final CountDownLatch started,
+                                final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  /**
+   * Wait until every lane ran everything queued so far, catch-ups included
+   */
+  private void drain(String... keys) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (queue.getQueueDepth() > 0 &&
+        System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    final CountDownLatch done = new CountDownLatch(keys.length);
+    for (String key : keys) {
+      assertThat(queue.execute(key, new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      })).isTrue();
+    }
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void testTasksOfOneKeyRunInOrder() throws Exception {
+    queue = newQueue(4, 1000);
+    List<String> expected = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      queue.execute(A, record(A + i));
+      queue.execute("other" + i, record("other" + i));
+      expected.add(A + i);
+    }
+    drain(A);
+
+    List<String> forA = Lists.newArrayList();
+    synchronized (ran) {
+      for (String name : ran) {
+        if (name.startsWith(A)) {
+          forA.add(name);
+        }
+      }
+    }
+    assertThat(forA).isEqualTo(expected);
+  }
+
+  @Test
+  public void testFullLaneDropsUntilCaughtUp() throws Exception {
+    queue = newQueue(1, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    assertThat(queue.execute(A, await(started, release))).isTrue();
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(queue.execute(A, record("queued"))).isTrue();
+
+    // returns right away instead of waiting for room
+    assertThat(queue.execute(A, record("dropped"))).isFalse();
+    assertThat(queue.getQueueDepth()).isEqualTo(2);
+    release.countDown();
+    drain(A);
+    // dropped until its catch-up is queued, behind it from then on
+    queue.execute(A, record("after"));
+    drain(A);
+    assertThat(ran).isEqualTo(
+        ImmutableList.of("queued", "catch-up a", "after"));
+  }
+
+  @Test
+  public void testOtherKeysOfTheLaneAreNotDropped() throws Exception {
+    queue = newQueue(1, 2);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    queue.execute(A, await(started, release));
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    queue.execute(A, record("a1"));
+    queue.execute(B, record("b1"));
+    assertThat(queue.execute(A, record("a2"))).isFalse();
+
+    release.countDown();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!ran.contains("catch-up a") &&
+        System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertThat(queue.execute(B, record("b2"))).isTrue();
+    drain(B);
+    assertThat(ran).isEqualTo(
+        ImmutableList.of("a1", "b1", "catch-up a", "b2"));
+  }
+
+  @Test
+  public void testDroppedTaskOfSeveralKeysReleasesTheirLanes()
+      throws Exception {
+    queue = newQueue(2, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    queue.execute(B, await(started, release));
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    queue.execute(B, record("b-queued"));
+
+    // queued in the lane of "a", then dropped since the one of "b" is full
+    assertThat(queue.execute(ImmutableList.of(A, B), record("both")))
+        .isFalse();
+    // not held by the placeholder left behind
+    queue.execute(A, record("a-after"));
+    drain(A);
+    assertThat(ran).isEqualTo(ImmutableList.of("catch-up a", "a-after"));
+
+    release.countDown();
+    drain(B);
+    assertThat(ran).doesNotContain("both");
+    assertThat(ran).contains("catch-up b");
+  }
+
+  @Test
+  public void testTaskOfSeveralKeysHoldsAllTheirLanes() throws Exception {
+    queue = newQueue(2, 10);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    queue.execute(A, await(started, release));
+    queue.execute(A, record("a-before"));
+    queue.execute(ImmutableList.of(A, B), record("both"));
+    // free to run right away without the other lane being held
+    queue.execute(B, record("b-after"));
+
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+    Thread.sleep(100);
+    assertThat(ran).isEmpty();
+    release.countDown();
+    drain(A, B);
+    assertThat(ran).isEqualTo(
+        ImmutableList.of("a-before", "both", "b-after"));
+  }
+
+  @Test
+  public void testTasksOfSeveralKeysAreOrderedInEveryLane() throws Exception {
+    queue = newQueue(2, 1000);
+    for (int i = 0; i < 50; i++) {
+      queue.execute(ImmutableList.of(A, B), record("ab" + i));
+      queue.execute(ImmutableList.of(B, A), record("ba" + i));
+      queue.execute(i % 2 == 0 ? A : B, record("single" + i));
+    }
+    drain(A, B);
+
+    List<String> multi = Lists.newArrayList();
+    List<String> expected = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      expected.add("ab" + i);
+      expected.add("ba" + i);
+    }
+    synchronized (ran) {
+      for (String name : ran) {
+        if (!name.startsWith("single")) {
+          multi.add(name);
+        }
+      }
+    }
+    assertThat(multi).isEqualTo(expected);
+    assertThat(ran).hasSize(150);
+  }
+}
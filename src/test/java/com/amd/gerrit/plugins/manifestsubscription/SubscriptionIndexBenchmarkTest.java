@@ -0,0 +1,114 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.createManifest;
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Heap taken by {@link SubscriptionIndex} and by the Table layout it
+ * replaced, for 200 branch paths of 1000 projects each.  Only run with
+ * {@code mvn test -Pbenchmark}.
+ */
+public class SubscriptionIndexBenchmarkTest {
+  private static final int BRANCH_PATHS = 200;
+  private static final int PROJECTS = 1000;
+
+  @Test
+  public void testFootprint() throws Exception {
+    List<Manifest> manifests = Lists.newArrayList();
+    for (int i = 0; i < BRANCH_PATHS; i++) {
+      Manifest manifest = createManifest("project", PROJECTS);
+      // some projects on a branch of their own, as in AOSP
+      for (int p = 5; p < PROJECTS; p += 10) {
+        manifest.getProject().get(p).setRevision("stable");
+      }
+      manifests.add(manifest);
+    }
+
+    long base = usedMemory();
+    Table<ProjectBranchKey, String, ConcurrentMap<String, Set<Project>>>
+        table = createTable(manifests);
+    long tableBytes = usedMemory() - base;
+    assertThat(table.rowKeySet()).hasSize(PROJECTS);
+    table = null;
+
+    base = usedMemory();
+    SubscriptionIndex index = new SubscriptionIndex();
+    for (int i = 0; i < BRANCH_PATHS; i++) {
+      index.watch("store", "master", "master/" + i + ".xml", manifests.get(i),
+          "manifest");
+    }
+    long indexBytes = usedMemory() - base;
+    assertThat(index.getStores(
+        new ProjectBranchKey("project0", "master"))).hasSize(1);
+
+    System.out.println(String.format(
+        "%d branchPaths x %d projects: Table %d KiB, SubscriptionIndex %d KiB",
+        BRANCH_PATHS, PROJECTS, tableBytes / 1024, indexBytes / 1024));
+  }
+
+  /**
+   * The layout used before SubscriptionIndex
+   */
+  private static Table<ProjectBranchKey, String,
+      ConcurrentMap<String, Set<Project>>> createTable(
+      List<Manifest> manifests) {
+    Table<ProjectBranchKey, String, ConcurrentMap<String, Set<Project>>>
+        table = HashBasedTable.create();
+    for (int i = 0; i < manifests.size(); i++) {
+      String branchPath = "master/" + i + ".xml";
+      for (Project project : manifests.get(i).getProject()) {
+        ProjectBranchKey pbKey = new ProjectBranchKey(project.getName(),
+            project.getRevision() == null ?
+                manifests.get(i).getDefault().getRevision() :
+                project.getRevision());
+        if (!table.contains(pbKey, "store")) {
+          table.put(pbKey, "store",
+              Maps.<String, Set<Project>>newConcurrentMap());
+        }
+        Map<String, Set<Project>> ps = table.get(pbKey, "store");
+        if (!ps.containsKey(branchPath)) {
+          ps.put(branchPath, Sets.<Project>newHashSet());
+        }
+        ps.get(branchPath).add(project);
+      }
+    }
+    return table;
+  }
+
+  private static long usedMemory() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.collect.Lists;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.createManifest;
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.manifest;
+import static com.google.common.truth.Truth.assertThat;
+
+public class SubscriptionIndexFileTest {
+  private static final ObjectId COMMIT =
+      ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+
+  private Path dir;
+  private Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("subscriptions");
+    file = dir.resolve(SubscriptionIndexFile.FILE_NAME);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(dir);
+  }
+
+  @Test
+  public void testRestoredIndexMatchesSaved() throws IOException {
+    SubscriptionIndex index = new SubscriptionIndex();
+    Manifest manifest = manifest()
+        .project("project0")
+        .project("project1").nested("tools0")
+        .project("project2").revision("stable")
+        .build();
+    index.watch("store", "master", "master/default.xml", manifest, "manifest");
+    index.watch("store", "master", "master/other.xml",
+        createManifest("project", 1), "manifest");
+    index.watch("store", "dev", "dev/default.xml",
+        createManifest("dev", 1), "manifest");
+    // a branch of its own, not a manifest of master
+    index.watch("store", "master/1.0", "master/1.0/default.xml",
+        createManifest("nested", 1), "manifest");
+
+    List<SubscriptionIndexFile.SourceBranch> saved = Lists.newArrayList();
+    saved.add(new SubscriptionIndexFile.SourceBranch("manifest", "master",
+        "store", COMMIT, ".*\\.xml", index.getWatched("store", "master")));
+    SubscriptionIndexFile.write(file, saved);
+
+    Map<String, SubscriptionIndexFile.SourceBranch> read =
+        SubscriptionIndexFile.read(file);
+    assertThat(read.keySet()).containsExactly(
+        SubscriptionIndexFile.key("manifest", "master"));
+    SubscriptionIndexFile.SourceBranch sb =
+        read.get(SubscriptionIndexFile.key("manifest", "master"));
+    assertThat(sb.store).isEqualTo("store");
+    assertThat(sb.commit).isEqualTo(COMMIT);
+    assertThat(sb.manifestPathPattern).isEqualTo(".*\\.xml");
+    assertThat(sb.branchPaths).hasSize(2);
+
+    SubscriptionIndex restored = new SubscriptionIndex();
+    for (SubscriptionIndex.Watched w : sb.branchPaths) {
+      restored.restore(sb.store, sb.branch, w);
+    }
+    ProjectBranchKey key0 = new ProjectBranchKey("project0", "master");
+    assertThat(restored.getDestinations(key0, "store"))
+        .containsExactly("master/default.xml", "master/other.xml");
+    assertThat(restored.isSubscribed(
+        new ProjectBranchKey("project2", "stable"))).isTrue();
+    assertThat(restored.getDestinations(
+        new ProjectBranchKey("tools0", "master"), "store"))
+        .containsExactly("master/default.xml");
+    assertThat(restored.isSubscribed(
+        new ProjectBranchKey("dev0", "master"))).isFalse();
+    assertThat(restored.isSubscribed(
+        new ProjectBranchKey("nested0", "master"))).isFalse();
+    assertThat(restored.getManifestSource("store", "master/default.xml"))
+        .isEqualTo("manifest");
+
+    // positions survive, nested ones included, revisions land on the right
+    // projects
+    assertThat(restored.setRevision("store", "master/default.xml",
+        new ProjectBranchKey("project1", "master"), "4567")).isTrue();
+    assertThat(restored.setRevision("store", "master/default.xml",
+        new ProjectBranchKey("project2", "stable"), "89ab")).isTrue();
+    Manifest readBack = manifest()
+        .project("project0")
+        .project("project1").nested("tools0")
+        .project("project2").revision("stable")
+        .build();
+    restored.applyRevisions("store", "master/default.xml", readBack);
+    assertThat(readBack.getProject().get(0).getRevision()).isNull();
+    assertThat(readBack.getProject().get(1).getRevision()).isEqualTo("4567");
+    assertThat(readBack.getProject().get(1).getProject().get(0).getRevision())
+        .isNull();
+    assertThat(readBack.getProject().get(2).getRevision()).isEqualTo("89ab");
+  }
+
+  @Test
+  public void testMissingOrCorruptFile() throws IOException {
+    assertThat(SubscriptionIndexFile.read(file)).isEmpty();
+
+    Files.write(file, new byte[] {0, 1, 2});
+    assertThat(SubscriptionIndexFile.read(file)).isEmpty();
+
+    // written by version 1, without manifest path patterns
+    Files.write(file, new byte[] {0x4d, 0x53, 0x49, 0x58, 0, 0, 0, 1});
+    assertThat(SubscriptionIndexFile.read(file)).isEmpty();
+
+    SubscriptionIndexFile.write(file, Collections.singletonList(
+        new SubscriptionIndexFile.SourceBranch("manifest", "master", "store",
+            COMMIT, ".*\\.xml",
+            Collections.<SubscriptionIndex.Watched>emptyList())));
+    byte[] content = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(content, content.length - 4));
+    try {
+      SubscriptionIndexFile.read(file);
+      throw new AssertionError("truncated file read");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Corrupt");
+    }
+  }
+}
@@ -0,0 +1,400 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.createManifest;
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.manifest;
+import static com.google.common.truth.Truth.assertThat;
+
+public class SubscriptionIndexTest {
+  private static final int STORES = 8;
+  private static final int PROJECTS = 200;
+  private static final int ROUNDS = 50;
+
+  private SubscriptionIndex index;
+
+  @Before
+  public void setUp() {
+    index = new SubscriptionIndex();
+  }
+
+  @Test
+  public void testWatchAndRemove() {
+    Manifest manifest = manifest().projects("project", 2)
+        .project("project2").revision("refs/heads/stable").build();
+    index.watch("store", "master", "master/default.xml", manifest, "manifest");
+
+    ProjectBranchKey key = new ProjectBranchKey("project0", "master");
+    assertThat(index.isSubscribed(key)).isTrue();
+    assertThat(index.isSubscribed(
+        new ProjectBranchKey("project2", "stable"))).isTrue();
+    assertThat(index.isStore("store")).isTrue();
+    assertThat(index.getStores(key)).containsExactly("store");
+    assertThat(index.getDestinations(key, "store"))
+        .containsExactly("master/default.xml");
+    assertThat(index.getManifestSource("store", "master/default.xml"))
+        .isEqualTo("manifest");
+    assertThat(index.getSnapshotBlob("store", "master/default.xml")).isNull();
+    index.setSnapshotBlob("store", "master/default.xml", ObjectId.zeroId());
+    assertThat(index.getSnapshotBlob("store", "master/default.xml"))
+        .isEqualTo(ObjectId.zeroId());
+
+    assertThat(index.removeBranch("store", "master"))
+        .containsExactly("master/default.xml");
+    assertThat(index.isSubscribed(key)).isFalse();
+    assertThat(index.getSnapshot().getSubscribedProjects()).isEmpty();
+    assertThat(index.getSnapshotBlob("store", "master/default.xml")).isNull();
+  }
+
+  @Test
+  public void testNestedBranchNames() {
+    index.watch("store", "release", "release/default.xml",
+        createManifest("project", 1), "manifest");
+    index.watch("store", "release/1.0", "release/1.0/default.xml",
+        createManifest("project", 2), "manifest");
+
+    assertThat(index.getBranchPaths("store", "release"))
+        .containsExactly("release/default.xml");
+    assertThat(index.getBranchPaths("store", "release/1.0"))
+        .containsExactly("release/1.0/default.xml");
+    assertThat(index.getSourceBranch("store", "release/1.0/default.xml"))
+        .isEqualTo("release/1.0");
+    assertThat(index.getWatched("store", "release")).hasSize(1);
+
+    // release/1.0 is not a manifest of release
+    assertThat(index.removeBranch("store", "release"))
+        .containsExactly("release/default.xml");
+    assertThat(index.getBranchPaths("store"))
+        .containsExactly("release/1.0/default.xml");
+    assertThat(index.isSubscribed(
+        new ProjectBranchKey("project1", "master"))).isTrue();
+    assertThat(index.getSourceBranch("store", "release/default.xml"))
+        .isNull();
+  }
+
+  @Test
+  public void testRemovingBranchKeepsNestedBranchState() {
+    index.watch("store", "release", "release/default.xml",
+        createManifest("project", 1), "manifest");
+    index.watch("store", "release/1.0", "release/1.0/default.xml",
+        createManifest("project", 1), "manifest");
+    index.setSnapshotBlob("store", "release/1.0/default.xml",
+        ObjectId.zeroId());
+    ProjectBranchKey key = new ProjectBranchKey("project0", "master");
+    assertThat(index.setRevision("store", "release/1.0/default.xml", key,
+        "0123")).isTrue();
+
+    // release evicted while release/1.0 is in use
+    assertThat(index.getBranchPaths("store", "release"))
+        .containsExactly("release/default.xml");
+    index.removeBranch("store", "release");
+
+    assertThat(index.getDestinations(key, "store"))
+        .containsExactly("release/1.0/default.xml");
+    assertThat(index.getSnapshotBlob("store", "release/1.0/default.xml"))
+        .isEqualTo(ObjectId.zeroId());
+    Manifest readBack = createManifest("project", 1);
+    index.applyRevisions("store", "release/1.0/default.xml", readBack);
+    assertThat(readBack.getProject().get(0).getRevision()).isEqualTo("0123");
+  }
+
+  @Test
+  public void testSnapshot() {
+    SubscriptionSnapshot empty = index.getSnapshot();
+    index.watch("store", "master", "master/default.xml",
+        createManifest("project", 2), "manifest");
+    index.watch("store", "master", "master/other.xml",
+        createManifest("project", 1), "manifest");
+    SubscriptionSnapshot snapshot = index.getSnapshot();
+
+    assertThat(snapshot.getGeneration()).isGreaterThan(empty.getGeneration());
+    assertThat(snapshot.getStores()).containsExactly("store");
+    assertThat(snapshot.getSubscribedProjects()).containsExactly(
+        new ProjectBranchKey("project0", "master"),
+        new ProjectBranchKey("project1", "master"));
+    assertThat(snapshot.getBranchPaths(
+        new ProjectBranchKey("project0", "master")))
+        .containsExactly("master/default.xml", "master/other.xml");
+    // readers get the same instance until something changes
+    assertThat(index.getSnapshot()).isSameAs(snapshot);
+    assertThat(snapshot.getSubscribedProjects())
+        .isSameAs(snapshot.getSubscribedProjects());
+
+    index.removeStore("store");
+    assertThat(empty.getSubscribedProjects()).isEmpty();
+    assertThat(snapshot.getSubscribedProjects()).hasSize(2);
+    assertThat(index.getSnapshot().getSubscribedProjects()).isEmpty();
+    assertThat(index.getSnapshot().getGeneration())
+        .isGreaterThan(snapshot.getGeneration());
+  }
+
+  @Test
+  public void testSnapshotSharesUnchangedStores() {
+    index.watch("store1", "master", "master/default.xml",
+        createManifest("project", 2), "manifest1");
+    index.watch("store2", "master", "master/default.xml",
+        createManifest("project", 1), "manifest2");
+    ProjectBranchKey shared = new ProjectBranchKey("project0", "master");
+    ProjectBranchKey store1Only = new ProjectBranchKey("project1", "master");
+    SubscriptionSnapshot before = index.getSnapshot();
+    ImmutableSet<String> store1Paths = before.getBranchPaths(store1Only);
+    assertThat(before.getSubscribedProjects()).containsExactly(
+        shared, store1Only);
+
+    index.watch("store2", "master", "master/other.xml",
+        createManifest("project", 1), "manifest2");
+    SubscriptionSnapshot after = index.getSnapshot();
+    // the lookup of store1 is not built again
+    assertThat(after.getBranchPaths(store1Only)).isSameAs(store1Paths);
+    // merged across the stores
+    assertThat(after.getBranchPaths(shared)).containsExactly(
+        "master/default.xml", "master/other.xml");
+    assertThat(after.getSubscribedProjects()).hasSize(2);
+    assertThat(after.getSubscribedProjects().contains(shared)).isTrue();
+    assertThat(after.getSubscribedProjects().contains(
+        new ProjectBranchKey("project2", "master"))).isFalse();
+  }
+
+  @Test
+  public void testCompactionKeepsSubscriptions() {
+    index.watch("store1", "master", "master/default.xml",
+        createManifest("old", 3), "manifest1");
+    Manifest manifest = createManifest("project", 2);
+    index.watch("store2", "master", "master/default.xml", manifest,
+        "manifest2");
+    ProjectBranchKey key = new ProjectBranchKey("project1", "master");
+    index.setRevision("store2", "master/default.xml", key, "0123");
+    index.removeStore("store1");
+    assertThat(index.getKeyCount()).isEqualTo(5);
+
+    index.compactKeys();
+    assertThat(index.getKeyCount()).isEqualTo(2);
+    assertThat(index.getStores(key)).containsExactly("store2");
+    assertThat(index.getDestinations(key, "store2"))
+        .containsExactly("master/default.xml");
+    assertThat(index.getSnapshot().getBranchPaths(key))
+        .containsExactly("master/default.xml");
+    // revisions set before the compaction are still applied
+    Manifest readBack = createManifest("project", 2);
+    index.applyRevisions("store2", "master/default.xml", readBack);
+    assertThat(readBack.getProject().get(1).getRevision()).isEqualTo("0123");
+    assertThat(index.setRevision("store2", "master/default.xml", key,
+        "4567")).isTrue();
+
+    // watched again, only the difference is applied to the postings
+    manifest.getProject().remove(0);
+    index.watch("store2", "master", "master/default.xml", manifest,
+        "manifest2");
+    assertThat(index.isSubscribed(
+        new ProjectBranchKey("project0", "master"))).isFalse();
+    assertThat(Arrays.asList(index.getWatched("store2", "master").get(0).keys))
+        .containsExactly(key);
+  }
+
+  @Test
+  public void testUnsubscribedKeysAreReclaimed() {
+    index.watch("store1", "master", "master/default.xml",
+        createManifest("old", 3000), "manifest1");
+    index.watch("store2", "master", "master/default.xml",
+        createManifest("project", 10), "manifest2");
+    assertThat(index.getKeyCount()).isEqualTo(3010);
+
+    // more unused ids than subscribed ones
+    index.removeBranch("store1", "master");
+    assertThat(index.getKeyCount()).isEqualTo(10);
+    assertThat(index.isSubscribed(
+        new ProjectBranchKey("project9", "master"))).isTrue();
+
+    // a few unused ids are kept
+    index.removeStore("store2");
+    assertThat(index.getKeyCount()).isEqualTo(10);
+  }
+
+  @Test
+  public void testRewatchAppliesDifference() {
+    Manifest manifest = createManifest("project", 3);
+    // same project branch twice in one manifest
+    manifest.getProject().get(2).setName("project0");
+    index.watch("store", "master", "master/default.xml", manifest, "manifest");
+    index.watch("store", "master", "master/other.xml",
+        createManifest("project", 1), "manifest");
+
+    ProjectBranchKey key0 = new ProjectBranchKey("project0", "master");
+    ProjectBranchKey key1 = new ProjectBranchKey("project1", "master");
+    assertThat(index.getDestinations(key0, "store"))
+        .containsExactly("master/default.xml", "master/other.xml");
+
+    Manifest updated = createManifest("project", 1);
+    index.watch("store", "master", "master/default.xml", updated, "manifest");
+    assertThat(index.isSubscribed(key1)).isFalse();
+    assertThat(index.getDestinations(key0, "store"))
+        .containsExactly("master/default.xml", "master/other.xml");
+    assertThat(index.getDestinations(key0, "other")).isEmpty();
+
+    // a freed slot taken by another store branch
+    assertThat(index.removeBranchPath("store", "master/other.xml")).isTrue();
+    index.watch("store2", "master", "master/default.xml",
+        createManifest("project", 2), "manifest2");
+    assertThat(index.getStores(key0)).containsExactly("store", "store2");
+    assertThat(index.getStores(key1)).containsExactly("store2");
+    assertThat(index.getDestinations(key0, "store"))
+        .containsExactly("master/default.xml");
+  }
+
+  @Test
+  public void testRevisionsAppliedToReadBackManifest() {
+    // same project branch twice, once nested
+    Manifest manifest = manifest()
+        .project("project0")
+        .project("project1").nested("project0")
+        .project("project2").revision("stable")
+        .build();
+    index.watch("store", "master", "master/default.xml", manifest, "manifest");
+
+    ProjectBranchKey key0 = new ProjectBranchKey("project0", "master");
+    assertThat(index.setRevision("store", "master/default.xml", key0,
+        "0123")).isTrue();
+    assertThat(index.setRevision("store", "master/default.xml",
+        new ProjectBranchKey("project2", "master"), "4567")).isFalse();
+    assertThat(index.setRevision("store", "master/other.xml", key0,
+        "0123")).isFalse();
+
+    // the snapshot written to the store has revisions affixed
+    Manifest readBack = manifest()
+        .project("project0")
+        .project("project1").nested("project0")
+        .project("project2")
+        .build();
+    index.applyRevisions("store", "master/default.xml", readBack);
+    assertThat(readBack.getProject().get(0).getRevision()).isEqualTo("0123");
+    assertThat(readBack.getProject().get(1).getRevision()).isNull();
+    assertThat(readBack.getProject().get(1).getProject().get(0).getRevision())
+        .isEqualTo("0123");
+    assertThat(readBack.getProject().get(2).getRevision()).isNull();
+
+    // written, nothing left to apply
+    index.setSnapshotBlob("store", "master/default.xml", ObjectId.zeroId());
+    readBack = createManifest("project", 1);
+    index.applyRevisions("store", "master/default.xml", readBack);
+    assertThat(readBack.getProject().get(0).getRevision()).isNull();
+  }
+
+  @Test
+  public void testStoreProjectsAreNotSubscribed() {
+    index.watch("store", "master", "master/default.xml",
+        createManifest("project", 1), "manifest");
+    Manifest manifest = createManifest("project", 1);
+    manifest.getProject().get(0).setName("store");
+    index.watch("store2", "master", "master/default.xml",
+        manifest, "manifest2");
+
+    assertThat(index.isSubscribed(
+        new ProjectBranchKey("store", "master"))).isFalse();
+  }
+
+  @Test
+  public void testConcurrentReloadsOfDifferentStores() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(STORES + 2);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicBoolean writing = new AtomicBoolean(true);
+    List<Future<?>> writers = Lists.newArrayList();
+
+    for (int s = 0; s < STORES; s++) {
+      final String store = "store" + s;
+      writers.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          start.await();
+          for (int round = 0; round < ROUNDS; round++) {
+            // every store subscribes to the same project branches
+            index.removeBranch(store, "master");
+            index.watch(store, "master", "master/default.xml",
+                createManifest("project", PROJECTS), "manifest");
+            index.watch(store, "master", "master/other.xml",
+                createManifest("project", PROJECTS / 2), "manifest");
+          }
+          return null;
+        }
+      }));
+    }
+
+    List<Future<?>> readers = Lists.newArrayList();
+    for (int r = 0; r < 2; r++) {
+      readers.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          start.await();
+          while (writing.get()) {
+            for (int i = 0; i < PROJECTS; i++) {
+              ProjectBranchKey key = new ProjectBranchKey("project" + i, "master");
+              for (String store : index.getStores(key)) {
+                index.getDestinations(key, store).size();
+              }
+            }
+            SubscriptionSnapshot snapshot = index.getSnapshot();
+            for (ProjectBranchKey key : snapshot.getSubscribedProjects()) {
+              assertThat(snapshot.getBranchPaths(key)).isNotEmpty();
+            }
+          }
+          return null;
+        }
+      }));
+    }
+
+    start.countDown();
+    for (Future<?> f : writers) {
+      f.get(60, TimeUnit.SECONDS);
+    }
+    writing.set(false);
+    for (Future<?> f : readers) {
+      f.get(60, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    assertThat(index.getSnapshot().getSubscribedProjects()).hasSize(PROJECTS);
+    assertThat(index.getSnapshot().getStores()).hasSize(STORES);
+    for (int i = 0; i < PROJECTS; i++) {
+      ProjectBranchKey key = new ProjectBranchKey("project" + i, "master");
+      assertThat(index.getStores(key)).hasSize(STORES);
+      for (String store : index.getStores(key)) {
+        assertThat(index.getDestinations(key, store))
+            .hasSize(i < PROJECTS / 2 ? 2 : 1);
+      }
+    }
+
+    for (int s = 0; s < STORES; s++) {
+      index.removeStore("store" + s);
+    }
+    assertThat(index.getSnapshot().getSubscribedProjects()).isEmpty();
+    assertThat(index.getSnapshot().getStores()).isEmpty();
+  }
+}
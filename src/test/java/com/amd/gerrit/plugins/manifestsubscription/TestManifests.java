@@ -0,0 +1,124 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Annotation;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Default;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Include;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Project;
+import com.amd.gerrit.plugins.manifestsubscription.manifest.RemoveProject;
+
+/**
+ * Manifests built in code for the tests.  Projects are added at the top
+ * level; revision, groups, annotation and nested apply to the last one
+ * added.
+ */
+class TestManifests {
+  private final Manifest manifest = new Manifest();
+  private Project last;
+
+  private TestManifests() {
+    manifest.setDefault(new Default());
+    manifest.getDefault().setRevision("master");
+  }
+
+  /**
+   * @return an empty manifest on the default revision master
+   */
+  static TestManifests manifest() {
+    return new TestManifests();
+  }
+
+  /**
+   * @return projects prefix0 to prefix(projects - 1) on the default
+   * revision master, nothing else
+   */
+  static Manifest createManifest(String prefix, int projects) {
+    return manifest().projects(prefix, projects).build();
+  }
+
+  /**
+   * Leave the default to an included manifest, a manifest and its includes
+   * can't both have one
+   */
+  TestManifests noDefault() {
+    manifest.setDefault(null);
+    return this;
+  }
+
+  TestManifests projects(String prefix, int count) {
+    for (int i = 0; i < count; i++) {
+      project(prefix + i);
+    }
+    return this;
+  }
+
+  TestManifests project(String name) {
+    last = newProject(name);
+    manifest.getProject().add(last);
+    return this;
+  }
+
+  TestManifests revision(String revision) {
+    last.setRevision(revision);
+    return this;
+  }
+
+  TestManifests groups(String groups) {
+    last.setGroups(groups);
+    return this;
+  }
+
+  TestManifests annotation(String name, String value) {
+    Annotation annotation = new Annotation();
+    annotation.setName(name);
+    annotation.setValue(value);
+    last.getAnnotation().add(annotation);
+    return this;
+  }
+
+  /**
+   * Nest a project in the last one added, it stays the last one
+   */
+  TestManifests nested(String name) {
+    last.getProject().add(newProject(name));
+    return this;
+  }
+
+  TestManifests include(String name) {
+    Include include = new Include();
+    include.setName(name);
+    manifest.getInclude().add(include);
+    return this;
+  }
+
+  TestManifests removeProject(String name) {
+    RemoveProject rp = new RemoveProject();
+    rp.setName(name);
+    manifest.getRemoveProject().add(rp);
+    return this;
+  }
+
+  Manifest build() {
+    return manifest;
+  }
+
+  private static Project newProject(String name) {
+    Project project = new Project();
+    project.setName(name);
+    return project;
+  }
+}
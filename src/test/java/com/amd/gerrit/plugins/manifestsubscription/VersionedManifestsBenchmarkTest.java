@@ -0,0 +1,88 @@
+// Copyright (C) 2017 Advanced Micro Devices, Inc.  All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.amd.gerrit.plugins.manifestsubscription;
+
+import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Reading aosp.xml and writing it back, as every snapshot update does, with
+ * a new JAXBContext and buffer each time and with the pooled unmarshallers
+ * and save buffers.  Both write with {@link ManifestWriter}, so only the
+ * pooling is compared.  Only run with {@code mvn test -Pbenchmark}.
+ */
+public class VersionedManifestsBenchmarkTest {
+  private static final int ROUNDS = 50;
+
+  @Test
+  public void testPooled() throws Exception {
+    byte[] xml;
+    try (InputStream in = getClass().getResourceAsStream("/aosp.xml")) {
+      xml = ByteStreams.toByteArray(in);
+    }
+
+    // warm up class loading and the JIT for both
+    assertThat(pooled(xml)).isEqualTo(perUpdate(xml));
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      perUpdate(xml);
+    }
+    long perUpdate = (System.nanoTime() - start) / ROUNDS;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      pooled(xml);
+    }
+    long pooled = (System.nanoTime() - start) / ROUNDS;
+
+    System.out.println(String.format(
+        "read and write of aosp.xml: context per update %d us, " +
+            "pooled %d us", perUpdate / 1000, pooled / 1000));
+    assertThat(pooled).isLessThan(perUpdate / 2);
+  }
+
+  /**
+   * What every VersionedManifests and parseManifest did before
+   */
+  private static byte[] perUpdate(byte[] xml) throws Exception {
+    JAXBContext ctx = JAXBContext.newInstance(Manifest.class);
+    Manifest manifest = (Manifest) ctx.createUnmarshaller().unmarshal(
+        new ByteArrayInputStream(xml));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ManifestWriter.write(manifest, output);
+    return output.toByteArray();
+  }
+
+  private static byte[] pooled(byte[] xml) throws Exception {
+    Manifest manifest = VersionedManifests.parseManifest(xml);
+    VersionedManifests.SaveBuffer buffer =
+        VersionedManifests.SaveBuffer.acquire();
+    try {
+      ManifestWriter.write(manifest, buffer);
+      return buffer.toByteArray();
+    } finally {
+      buffer.release();
+    }
+  }
+}
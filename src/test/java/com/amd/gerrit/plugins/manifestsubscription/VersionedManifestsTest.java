@@ -16,14 +16,22 @@ package com.amd.gerrit.plugins.manifestsubscription;
 
 import com.amd.gerrit.plugins.manifestsubscription.manifest.Manifest;
 import com.amd.gerrit.plugins.manifestsubscription.manifest.ManifestTest;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gerrit.server.git.MetaDataUpdate;
 import org.apache.commons.compress.utils.IOUtils;
 import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
 import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 
+import java.util.Map;
+
+import static com.amd.gerrit.plugins.manifestsubscription.TestManifests.manifest;
 import static com.google.common.truth.Truth.assertThat;
 
 public class VersionedManifestsTest extends LocalDiskRepositoryTestCase {
@@ -118,6 +126,138 @@ public class VersionedManifestsTest extends LocalDiskRepositoryTestCase {
     manifest = versionedManifests.readManifest("nonxml.txt");
   }
 
+  @Test
+  public void testManifestPathPattern() throws Exception {
+    RevCommit rev = util.commit(util.tree(
+        util.file("testonly.xml",
+            util.blob(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/testonly.xml")))),
+        util.file("subdir/testonly1.xml",
+            util.blob(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/subdir/testonly1.xml")))),
+        util.file("subdir/nonxml.txt",
+            util.blob(IOUtils.toByteArray(
+                getClass().getResourceAsStream("/nonxml.txt"))))
+    ));
+
+    VersionedManifests versionedManifests =
+        new VersionedManifests("master");
+    versionedManifests.setManifestPathPattern("subdir/.*\\.xml");
+    versionedManifests.load(db, rev);
+
+    assertThat(versionedManifests.getManifestPaths())
+        .containsExactly("subdir/testonly1.xml");
+  }
+
+  private MetaDataUpdate newUpdate() {
+    MetaDataUpdate update = new MetaDataUpdate(GitReferenceUpdated.DISABLED,
+        new Project.NameKey("store"), db);
+    PersonIdent ident =
+        new PersonIdent("Gerrit Code Review", "gerrit@example.com");
+    update.getCommitBuilder().setAuthor(ident);
+    update.getCommitBuilder().setCommitter(ident);
+    return update;
+  }
+
+  private RevCommit saveSnapshot(String refName, Manifest manifest)
+      throws Exception {
+    VersionedManifests versionedManifests = new VersionedManifests(refName);
+    versionedManifests.load(db, db.resolve(refName));
+    Map<String, Manifest> entry = Maps.newHashMap();
+    entry.put(ManifestSubscription.SNAPSHOT_PATH, manifest);
+    versionedManifests.setManifests(entry);
+    return versionedManifests.commit(newUpdate());
+  }
+
+  /**
+   * Written back as is when unchanged, annotations and groups included
+   */
+  private static Manifest createSnapshot() {
+    return manifest()
+        .project("project0").groups("pdk,tools")
+        .annotation("owner", "tools")
+        .project("project1")
+        .build();
+  }
+
+  private RevCommit createSnapshotBranch(String refName, Manifest manifest)
+      throws Exception {
+    RevCommit commit = util.commit(util.tree(
+        util.file(ManifestSubscription.SNAPSHOT_PATH,
+            util.blob(VersionedManifests.formatManifest(manifest)))));
+    util.update(refName, commit);
+    return commit;
+  }
+
+  @Test
+  public void testUnchangedManifestIsNotCommitted() throws Exception {
+    String refName = "refs/heads/m/master/default.xml";
+    Manifest manifest = createSnapshot();
+    RevCommit base = createSnapshotBranch(refName, manifest);
+
+    Manifest updated = createSnapshot();
+    updated.getProject().get(0).setRevision(base.getName());
+    RevCommit first = saveSnapshot(refName, updated);
+    assertThat(first.getParent(0)).isEqualTo(base);
+    assertThat(db.exactRef(refName).getObjectId()).isEqualTo(first);
+
+    // same content again, the current commit is returned as is
+    Manifest same = createSnapshot();
+    same.getProject().get(0).setRevision(base.getName());
+    assertThat(saveSnapshot(refName, same)).isEqualTo(first);
+    assertThat(db.exactRef(refName).getObjectId()).isEqualTo(first);
+  }
+
+  @Test
+  public void testNewBranchIsCreatedWithUnchangedManifest() throws Exception {
+    String baseRef = "refs/heads/master";
+    String refName = "refs/heads/m/master/default.xml";
+    Manifest manifest = createSnapshot();
+    RevCommit base = createSnapshotBranch(baseRef, manifest);
+
+    VersionedManifests versionedManifests = new VersionedManifests(baseRef);
+    versionedManifests.load(db, base);
+    Map<String, Manifest> entry = Maps.newHashMap();
+    entry.put(ManifestSubscription.SNAPSHOT_PATH, createSnapshot());
+    versionedManifests.setManifests(entry);
+    MetaDataUpdate update = newUpdate();
+    RevCommit commit = versionedManifests.commitToNewRef(update, refName);
+
+    assertThat(commit).isNotEqualTo(base);
+    assertThat(commit.getParent(0)).isEqualTo(base);
+    assertThat(commit.getTree()).isEqualTo(base.getTree());
+    assertThat(db.exactRef(refName).getObjectId()).isEqualTo(commit);
+    assertThat(db.exactRef(baseRef).getObjectId()).isEqualTo(base);
+    assertThat(update.allowEmpty()).isFalse();
+  }
+
+  @Test
+  public void testCoalescedCommitMessage() throws Exception {
+    String sha1 = "0123456789abcdef0123456789abcdef01234567";
+    String sha2 = "89abcdef0123456789abcdef0123456789abcdef";
+    StringBuilder extraCommitMsgs = new StringBuilder();
+    // the first commit could not be read
+    VersionedManifests.appendExtraCommitMsg(extraCommitMsgs, "");
+    VersionedManifests.appendExtraCommitMsg(extraCommitMsgs,
+        "project1\n" + sha1 + "\nFirst change");
+    VersionedManifests.appendExtraCommitMsg(extraCommitMsgs, "");
+    VersionedManifests.appendExtraCommitMsg(extraCommitMsgs,
+        "project2\n" + sha2 + "\nSecond change");
+
+    String message = VersionedManifests.commitMessage("manifest",
+        extraCommitMsgs.toString());
+    // subject is the first commit, body is project/sha/subject triples
+    assertThat(message).isEqualTo(sha1 + "\n\n" +
+        "project1\n" + sha1 + "\nFirst change\n" +
+        "project2\n" + sha2 + "\nSecond change");
+
+    extraCommitMsgs.setLength(0);
+    VersionedManifests.appendExtraCommitMsg(extraCommitMsgs, "");
+    assertThat(VersionedManifests.commitMessage("manifest",
+        extraCommitMsgs.toString()))
+        .isEqualTo("Snapshot manifest from manifest updated");
+  }
+
   @After
   public void tearDown() throws Exception {
 